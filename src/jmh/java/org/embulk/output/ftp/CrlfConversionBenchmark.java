@@ -0,0 +1,113 @@
+package org.embulk.output.ftp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares ftp4j's ASCII mode upload loop (decode with a Reader, re-encode with a Writer)
+ * with the byte level LF to CRLF conversion of {@link CrlfOutputStream}.
+ *
+ * Run with {@code ./gradlew jmh}. Each invocation processes {@link #DATA_SIZE} bytes of CSV-like text.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CrlfConversionBenchmark
+{
+    private static final int DATA_SIZE = 16 * 1024 * 1024;
+    // same as FTPClient's SEND_AND_RECEIVE_BUFFER_SIZE and a typical Embulk buffer
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private byte[] data;
+
+    @Setup
+    public void setup()
+    {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < DATA_SIZE; i++) {
+            sb.append(i).append(",32864,2015-01-27 19:23:49,20150127,embulk,{\"k\":true}\n");
+        }
+        data = sb.substring(0, DATA_SIZE).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public long ftp4jTextualMode() throws IOException
+    {
+        final CountingOutputStream sink = new CountingOutputStream();
+        final Reader reader = new InputStreamReader(new ByteArrayInputStream(data), StandardCharsets.UTF_8);
+        final Writer writer = new OutputStreamWriter(sink, StandardCharsets.UTF_8);
+        final char[] buffer = new char[CHUNK_SIZE];
+        int l;
+        while ((l = reader.read(buffer)) != -1) {
+            writer.write(buffer, 0, l);
+            writer.flush();
+        }
+        return sink.count;
+    }
+
+    @Benchmark
+    public long crlfOutputStream() throws IOException
+    {
+        final CountingOutputStream sink = new CountingOutputStream();
+        final OutputStream out = new CrlfOutputStream(sink);
+        copy(new ByteArrayInputStream(data), out);
+        out.flush();
+        return sink.count;
+    }
+
+    @Benchmark
+    public long binaryMode() throws IOException
+    {
+        final CountingOutputStream sink = new CountingOutputStream();
+        copy(new ByteArrayInputStream(data), sink);
+        return sink.count;
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException
+    {
+        final byte[] buffer = new byte[CHUNK_SIZE];
+        int l;
+        while ((l = in.read(buffer)) != -1) {
+            out.write(buffer, 0, l);
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream
+    {
+        private long count;
+
+        @Override
+        public void write(int b)
+        {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.embulk.output.ftp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JVM-wide circuit breaker shared by all tasks talking to one FTP server.
+ *
+ * After {@code threshold} consecutive transient failures, the breaker opens for {@code timeoutSeconds}.
+ * While it is open, tasks give up instead of retrying, so that a job fails in seconds
+ * when the server is down rather than after every task exhausted its own retries.
+ */
+class CircuitBreaker
+{
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+    private static final ConcurrentHashMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    private final String key;
+    private final int threshold;
+    private final long timeoutMillis;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openUntil = 0;
+
+    CircuitBreaker(String key, int threshold, int timeoutSeconds)
+    {
+        this.key = key;
+        this.threshold = threshold;
+        this.timeoutMillis = timeoutSeconds * 1000L;
+    }
+
+    static CircuitBreaker of(String host, int port, int threshold, int timeoutSeconds)
+    {
+        return BREAKERS.computeIfAbsent(host + ":" + port, key -> new CircuitBreaker(key, threshold, timeoutSeconds));
+    }
+
+    boolean isOpen()
+    {
+        return System.currentTimeMillis() < openUntil;
+    }
+
+    void checkClosed()
+    {
+        if (isOpen()) {
+            throw new CircuitOpenException(String.format("Circuit breaker for FTP server %s is open after %d consecutive failures",
+                    key, threshold));
+        }
+    }
+
+    void recordSuccess()
+    {
+        consecutiveFailures.set(0);
+    }
+
+    void recordFailure()
+    {
+        if (consecutiveFailures.incrementAndGet() >= threshold) {
+            consecutiveFailures.set(0);
+            if (!isOpen()) {
+                openUntil = System.currentTimeMillis() + timeoutMillis;
+                log.error("FTP server {} failed {} times in a row. Stopping retries for {} seconds",
+                        key, threshold, timeoutMillis / 1000);
+            }
+        }
+    }
+
+    static class CircuitOpenException extends RuntimeException
+    {
+        CircuitOpenException(String message)
+        {
+            super(message);
+        }
+    }
+}
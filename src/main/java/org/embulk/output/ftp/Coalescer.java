@@ -0,0 +1,261 @@
+package org.embulk.output.ftp;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JVM-wide aggregator that concatenates the spooled files of all tasks writing to the same path
+ * into parts of about {@code targetSize} bytes, so that small task outputs become a few remote files.
+ *
+ * Files are appended in the order tasks hand them over. With tar framing each file becomes a ustar entry
+ * named after the remote file it would have been uploaded as. The last task still open uploads the rest.
+ *
+ * A task may commit while its rows are still in the current part, which is then left to the tasks still open.
+ * So each part has an id, and task reports list the parts they contributed to and the parts they uploaded,
+ * for the transaction to fail if rows of a committed task were never uploaded. A part whose upload failed,
+ * or whose remaining tasks failed, is discarded, and tasks with rows in it fail when they finish.
+ */
+class Coalescer
+{
+    private static final ConcurrentHashMap<String, Coalescer> COALESCERS = new ConcurrentHashMap<>();
+    private static final int TAR_BLOCK_SIZE = 512;
+
+    private final long targetSize;
+    private final boolean tar;
+    private int openOutputs = 0;
+    private int nextPartIndex = 0;
+    private File current = null;
+    private OutputStream output = null;
+    private long currentSize = 0;
+    private int currentTaskIndex = 0;
+    private int currentPartIndex = 0;
+    // tasks with rows in the current part
+    private final Set<Integer> currentTasks = new HashSet<>();
+    private final Map<Integer, List<String>> contributions = new HashMap<>();
+    private final Set<String> discardedParts = new HashSet<>();
+
+    private Coalescer(long targetSize, boolean tar)
+    {
+        this.targetSize = targetSize;
+        this.tar = tar;
+    }
+
+    /**
+     * Returns the coalescer of the transaction identified by {@code key}, which covers every option that
+     * makes parts differ, so that no part mixes files of two transactions or configurations.
+     */
+    static Coalescer of(String key, long targetSize, boolean tar)
+    {
+        return COALESCERS.computeIfAbsent(key, k -> new Coalescer(targetSize, tar));
+    }
+
+    /**
+     * Forgets the coalescer of a finished transaction and deletes a part left behind by failed tasks.
+     */
+    static void remove(String key)
+    {
+        final Coalescer coalescer = COALESCERS.remove(key);
+        if (coalescer != null) {
+            coalescer.discardCurrent();
+        }
+    }
+
+    static class Part
+    {
+        final File file;
+        // the remote file name is formatted with sequence_format from these
+        final int taskIndex;
+        final int partIndex;
+
+        Part(File file, int taskIndex, int partIndex)
+        {
+            this.file = file;
+            this.taskIndex = taskIndex;
+            this.partIndex = partIndex;
+        }
+
+        String getId()
+        {
+            return getPartId(taskIndex, partIndex);
+        }
+    }
+
+    private static String getPartId(int taskIndex, int partIndex)
+    {
+        // parts of different JVMs never start with the same task
+        return taskIndex + "." + partIndex;
+    }
+
+    synchronized void open()
+    {
+        openOutputs++;
+    }
+
+    /**
+     * Returns the ids of the parts that have rows of the task.
+     */
+    synchronized List<String> getContributions(int taskIndex)
+    {
+        return new ArrayList<>(contributions.getOrDefault(taskIndex, new ArrayList<>()));
+    }
+
+    /**
+     * Moves {@code spool} into the current part and returns the part if it reached the target size.
+     */
+    synchronized Optional<Part> add(File spool, String entryName, int taskIndex) throws IOException
+    {
+        checkContributions(taskIndex);
+        if (current == null) {
+            current = File.createTempFile("coalesce", ".tmp", spool.getParentFile());
+            output = new BufferedOutputStream(new FileOutputStream(current));
+            currentSize = 0;
+            currentTaskIndex = taskIndex;
+            currentPartIndex = nextPartIndex++;
+        }
+        if (currentTasks.add(taskIndex)) {
+            contributions.computeIfAbsent(taskIndex, k -> new ArrayList<>()).add(getPartId(currentTaskIndex, currentPartIndex));
+        }
+        final long length = spool.length();
+        if (tar) {
+            output.write(tarHeader(entryName, length));
+        }
+        Files.copy(spool.toPath(), output);
+        currentSize += length;
+        if (tar && length % TAR_BLOCK_SIZE != 0) {
+            output.write(new byte[(int) (TAR_BLOCK_SIZE - length % TAR_BLOCK_SIZE)]);
+        }
+        if (!spool.delete()) {
+            throw new IOException("Couldn't delete local file " + spool.getAbsolutePath());
+        }
+        if (currentSize >= targetSize) {
+            return Optional.of(finishPart());
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Returns the rest when the last open output releases this after it finished.
+     *
+     * An output that failed ({@code finished} is false) discards the current part if the part has its rows,
+     * or if no output is left to upload it. Otherwise the rest is left to the outputs still open.
+     *
+     * @throws IOException if a finished output has rows in a discarded part
+     */
+    synchronized Optional<Part> release(int taskIndex, boolean finished) throws IOException
+    {
+        openOutputs--;
+        if (!finished) {
+            if (current != null && (currentTasks.contains(taskIndex) || openOutputs == 0)) {
+                discardCurrent();
+            }
+            return Optional.empty();
+        }
+        checkContributions(taskIndex);
+        if (openOutputs > 0 || current == null) {
+            return Optional.empty();
+        }
+        return Optional.of(finishPart());
+    }
+
+    /**
+     * Deletes a part that couldn't be uploaded. Tasks with rows in it fail when they add files or finish.
+     */
+    synchronized void discard(Part part)
+    {
+        discardedParts.add(part.getId());
+        if (part.file.exists() && !part.file.delete()) {
+            part.file.deleteOnExit();
+        }
+    }
+
+    private void checkContributions(int taskIndex) throws IOException
+    {
+        for (String id : contributions.getOrDefault(taskIndex, new ArrayList<>())) {
+            if (discardedParts.contains(id)) {
+                throw new IOException(String.format("Coalesced part %s with files of task %d was discarded because another task failed", id, taskIndex));
+            }
+        }
+    }
+
+    private synchronized void discardCurrent()
+    {
+        if (current == null) {
+            return;
+        }
+        try {
+            output.close();
+        }
+        catch (IOException ex) {
+            // deleted anyway
+        }
+        discard(new Part(current, currentTaskIndex, currentPartIndex));
+        current = null;
+        output = null;
+        currentTasks.clear();
+    }
+
+    private Part finishPart() throws IOException
+    {
+        if (tar) {
+            // end-of-archive marker
+            output.write(new byte[TAR_BLOCK_SIZE * 2]);
+        }
+        output.close();
+        final Part part = new Part(current, currentTaskIndex, currentPartIndex);
+        current = null;
+        output = null;
+        currentTasks.clear();
+        return part;
+    }
+
+    static byte[] tarHeader(String name, long size)
+    {
+        final byte[] header = new byte[TAR_BLOCK_SIZE];
+        final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 100) {
+            throw new IllegalArgumentException("Tar entry name is longer than 100 bytes: " + name);
+        }
+        if (size >= 1L << 33) {
+            throw new IllegalArgumentException("Tar entry is 8 GB or larger: " + name);
+        }
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        putOctal(header, 100, 8, 0644); // mode
+        putOctal(header, 108, 8, 0); // uid
+        putOctal(header, 116, 8, 0); // gid
+        putOctal(header, 124, 12, size);
+        putOctal(header, 136, 12, System.currentTimeMillis() / 1000); // mtime
+        header[156] = '0'; // regular file
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+        // the checksum is computed with its own field filled with spaces
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        putOctal(header, 148, 7, checksum);
+        return header;
+    }
+
+    private static void putOctal(byte[] header, int offset, int length, long value)
+    {
+        // zero padded digits followed by NUL
+        final String octal = String.format("%0" + (length - 1) + "o", value);
+        System.arraycopy(octal.getBytes(StandardCharsets.US_ASCII), 0, header, offset, length - 1);
+        header[offset + length - 1] = 0;
+    }
+}
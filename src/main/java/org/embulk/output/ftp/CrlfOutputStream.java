@@ -0,0 +1,71 @@
+package org.embulk.output.ftp;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Converts bare LF to CRLF byte by byte, without decoding characters.
+ *
+ * A CR at the end of one write followed by an LF at the beginning of the next is kept as one CRLF,
+ * so line endings split across {@link org.embulk.spi.Buffer} boundaries are handled.
+ * Bytes between line feeds are passed to the underlying stream in bulk.
+ */
+class CrlfOutputStream extends FilterOutputStream
+{
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private boolean lastWasCr;
+
+    CrlfOutputStream(OutputStream out)
+    {
+        this(out, false);
+    }
+
+    /**
+     * Continues a stream whose previous part ended with a CR when {@code lastWasCr} is true.
+     */
+    CrlfOutputStream(OutputStream out, boolean lastWasCr)
+    {
+        super(out);
+        this.lastWasCr = lastWasCr;
+    }
+
+    boolean endsWithCr()
+    {
+        return lastWasCr;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        if (b == LF && !lastWasCr) {
+            out.write(CR);
+        }
+        out.write(b);
+        lastWasCr = b == CR;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if (len <= 0) {
+            return;
+        }
+        final int end = off + len;
+        int start = off;
+        boolean previousIsCr = lastWasCr;
+        for (int i = off; i < end; i++) {
+            final byte c = b[i];
+            if (c == LF && !previousIsCr) {
+                out.write(b, start, i - start);
+                out.write(CR);
+                start = i;
+            }
+            previousIsCr = c == CR;
+        }
+        out.write(b, start, end - start);
+        lastWasCr = previousIsCr;
+    }
+}
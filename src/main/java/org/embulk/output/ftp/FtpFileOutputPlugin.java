@@ -3,11 +3,11 @@ package org.embulk.output.ftp;
 import it.sauronsoftware.ftp4j.FTPAbortedException;
 import it.sauronsoftware.ftp4j.FTPClient;
 import it.sauronsoftware.ftp4j.FTPCommunicationListener;
-import it.sauronsoftware.ftp4j.FTPConnector;
 import it.sauronsoftware.ftp4j.FTPDataTransferException;
 import it.sauronsoftware.ftp4j.FTPDataTransferListener;
 import it.sauronsoftware.ftp4j.FTPException;
 import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
+import it.sauronsoftware.ftp4j.FTPReply;
 import org.embulk.config.ConfigDiff;
 import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
@@ -34,16 +34,39 @@ import org.slf4j.LoggerFactory;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
-import java.net.ConnectException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 public class FtpFileOutputPlugin implements FileOutputPlugin
 {
@@ -73,6 +96,10 @@ public class FtpFileOutputPlugin implements FileOutputPlugin
         @ConfigDefault("false")
         boolean getAsciiMode();
 
+        @Config("ascii_mode_client_conversion")
+        @ConfigDefault("false") // convert LF to CRLF locally and transfer in binary mode
+        boolean getAsciiModeClientConversion();
+
         @Config("ssl")
         @ConfigDefault("false")
         boolean getSsl();
@@ -81,6 +108,10 @@ public class FtpFileOutputPlugin implements FileOutputPlugin
         @ConfigDefault("true")
         boolean getSslExplicit();
 
+        @Config("ssl_data_channel")
+        @ConfigDefault("\"private\"") // "private" (PROT P) or "clear" (PROT C)
+        String getSslDataChannel();
+
         SSLPluginConfig getSSLConfig();
         void setSSLConfig(SSLPluginConfig config);
 
@@ -98,9 +129,172 @@ public class FtpFileOutputPlugin implements FileOutputPlugin
         @ConfigDefault("10") // 10 times retry to connect FTP server if failed.
         int getMaxConnectionRetry();
 
+        @Config("max_transfer_retry")
+        @ConfigDefault("null") // same as max_connection_retry
+        Optional<Integer> getMaxTransferRetry();
+
+        @Config("circuit_breaker_threshold")
+        @ConfigDefault("null") // disabled
+        Optional<Integer> getCircuitBreakerThreshold();
+
+        @Config("circuit_breaker_timeout")
+        @ConfigDefault("60")
+        int getCircuitBreakerTimeout();
+
         @Config("directory_separator")
         @ConfigDefault("\"/\"")
         String getDirectorySeparator();
+
+        @Config("max_concurrent_uploads")
+        @ConfigDefault("null") // no limit
+        Optional<Integer> getMaxConcurrentUploads();
+
+        @Config("metrics_jmx")
+        @ConfigDefault("false")
+        boolean getMetricsJmx();
+
+        @Config("progress_log_interval")
+        @ConfigDefault("null") // seconds. disabled by default
+        Optional<Integer> getProgressLogInterval();
+
+        @Config("connection_timeout")
+        @ConfigDefault("30") // seconds
+        int getConnectionTimeout();
+
+        @Config("read_timeout")
+        @ConfigDefault("60") // seconds
+        int getReadTimeout();
+
+        @Config("close_timeout")
+        @ConfigDefault("60") // seconds
+        int getCloseTimeout();
+
+        @Config("keepalive_interval")
+        @ConfigDefault("30") // seconds. 0 disables it
+        int getKeepaliveInterval();
+
+        @Config("socket_send_buffer_size")
+        @ConfigDefault("null") // bytes or "auto". 512KB by default
+        Optional<String> getSocketSendBufferSize();
+
+        @Config("socket_bandwidth_mbps")
+        @ConfigDefault("1000") // expected bandwidth used by socket_send_buffer_size: auto
+        int getSocketBandwidthMbps();
+
+        @Config("tcp_no_delay")
+        @ConfigDefault("false")
+        boolean getTcpNoDelay();
+
+        @Config("tcp_keep_alive")
+        @ConfigDefault("false") // for data connections. control connections always use keepalive
+        boolean getTcpKeepAlive();
+
+        @Config("ip_traffic_class")
+        @ConfigDefault("null")
+        Optional<Integer> getIpTrafficClass();
+
+        @Config("protocol_trace_size")
+        @ConfigDefault("100") // lines of the control connection kept per connection. 0 to disable
+        int getProtocolTraceSize();
+
+        @Config("protocol_trace_slow_threshold")
+        @ConfigDefault("null") // seconds. dump protocol trace of uploads slower than this
+        Optional<Integer> getProtocolTraceSlowThreshold();
+
+        @Config("checkpoint_size")
+        @ConfigDefault("null") // bytes. upload spooled data every this many bytes
+        Optional<Long> getCheckpointSize();
+
+        @Config("checkpoint_interval")
+        @ConfigDefault("null") // seconds. upload spooled data every this many seconds
+        Optional<Integer> getCheckpointInterval();
+
+        @Config("spool_compression")
+        @ConfigDefault("\"none\"") // "none" or "deflate"
+        String getSpoolCompression();
+
+        @Config("preflight")
+        @ConfigDefault("true") // check server features before running tasks
+        boolean getPreflight();
+
+        @Config("preflight_write_check")
+        @ConfigDefault("false") // upload and delete a small file in preflight to check write permission
+        boolean getPreflightWriteCheck();
+
+        @Config("min_free_space")
+        @ConfigDefault("null") // bytes. checked by preflight if the server supports AVBL
+        Optional<Long> getMinFreeSpace();
+
+        // found by preflight, keyed by user@host:port
+        Optional<Map<String, ServerProfile>> getServerProfiles();
+        void setServerProfiles(Optional<Map<String, ServerProfile>> profiles);
+
+        @Config("max_host_sessions")
+        @ConfigDefault("null") // sessions to the same server across all processes on this host sharing session_lock_dir
+        Optional<Integer> getMaxHostSessions();
+
+        @Config("max_host_bandwidth_mbps")
+        @ConfigDefault("null") // shared by sessions counted by max_host_sessions
+        Optional<Integer> getMaxHostBandwidthMbps();
+
+        @Config("session_lock_dir")
+        @ConfigDefault("null") // java.io.tmpdir/embulk-output-ftp-locks
+        Optional<String> getSessionLockDir();
+
+        @Config("shard_by")
+        @ConfigDefault("\"none\"") // "none", "hash" or "time"
+        String getShardBy();
+
+        @Config("shard_count")
+        @ConfigDefault("256") // number of subdirectories of shard_by: hash
+        int getShardCount();
+
+        @Config("shard_time_format")
+        @ConfigDefault("\"yyyyMMddHH\"") // subdirectory of shard_by: time, formatted from the UTC start time of the run
+        String getShardTimeFormat();
+
+        @Config("shard_manifest_path")
+        @ConfigDefault("null") // remote file listing the remote path of each file
+        Optional<String> getShardManifestPath();
+
+        Optional<Long> getTransactionTimeMillis();
+        void setTransactionTimeMillis(Optional<Long> millis);
+
+        @Config("coalesce_size")
+        @ConfigDefault("null") // bytes. concatenate files of all tasks in this JVM into files of about this size
+        Optional<Long> getCoalesceSize();
+
+        @Config("coalesce_format")
+        @ConfigDefault("\"concat\"") // "concat" or "tar"
+        String getCoalesceFormat();
+
+        @Config("min_transfer_rate")
+        @ConfigDefault("null") // bytes per second. disabled by default
+        Optional<Integer> getMinTransferRate();
+
+        @Config("stall_window")
+        @ConfigDefault("30") // seconds to average the transfer rate over
+        int getStallWindow();
+
+        @Config("hedge_hosts")
+        @ConfigDefault("[]") // hosts serving the same files, tried in turn for hedged uploads. same host by default
+        List<String> getHedgeHosts();
+
+        @Config("sink")
+        @ConfigDefault("\"ftp\"") // "ftp", or "null" and "local_dir" to measure the pipeline without FTP servers
+        String getSink();
+
+        @Config("sink_local_dir")
+        @ConfigDefault("null")
+        Optional<String> getSinkLocalDir();
+
+        @Config("destinations")
+        @ConfigDefault("[]") // each element overrides options above for one FTP server
+        List<Map<String, Object>> getDestinations();
+
+        @Config("destination_quorum")
+        @ConfigDefault("null") // all destinations
+        Optional<Integer> getDestinationQuorum();
     }
 
     static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
@@ -112,191 +306,1241 @@ public class FtpFileOutputPlugin implements FileOutputPlugin
     private static final Integer FTPS_DEFAULT_PORT = 990;
     private static final Integer FTPES_DEFAULT_PORT = 21;
     private static final long TRANSFER_NOTICE_BYTES = 100 * 1024 * 1024;
+    private static final String SINK_FTP = "ftp";
+    private static final String SINK_NULL = "null";
+    private static final String SINK_LOCAL_DIR = "local_dir";
+    private static final String COALESCE_CONCAT = "concat";
+    private static final String COALESCE_TAR = "tar";
+    private static final String SSL_DATA_PRIVATE = "private";
+    private static final String SSL_DATA_CLEAR = "clear";
+    private static final String SPOOL_NONE = "none";
+    private static final String SPOOL_DEFLATE = "deflate";
+    // read once by FtpFileOutput for all destinations
+    private static final List<String> SPOOL_OPTIONS = Arrays.asList("ascii_mode", "ascii_mode_client_conversion", "spool_compression",
+            "sequence_format", "checkpoint_size", "checkpoint_interval", "coalesce_size", "coalesce_format", "destinations", "destination_quorum");
 
     @Override
     public ConfigDiff transaction(ConfigSource config, int taskCount, FileOutputPlugin.Control control)
     {
         final PluginTask task = CONFIG_MAPPER.map(config, PluginTask.class);
         task.setSSLConfig(SSLPlugins.configure(task));
+        if (task.getDestinationQuorum().isPresent()
+                && (task.getDestinationQuorum().get() < 1 || task.getDestinationQuorum().get() > Math.max(1, task.getDestinations().size()))) {
+            throw new ConfigException("destination_quorum must be between 1 and the number of destinations");
+        }
+        validateDestinations(task);
+        task.setTransactionTimeMillis(Optional.of(System.currentTimeMillis()));
+
+        final Map<String, ServerProfile> profiles = new LinkedHashMap<>();
+        for (PluginTask destination : getDestinationTasks(task)) {
+            validate(destination);
+            if (!SINK_FTP.equals(destination.getSink())) {
+                log.warn("Using sink \"{}\". Files are not uploaded to {}", destination.getSink(), destination.getHost());
+                continue;
+            }
+
+            // newFTPClient sets the port
+            final String profileKey = getServerProfileKey(destination);
+            // try to check if plugin could connect to FTP server
+            FTPClient client = null;
+            try {
+                try {
+                    client = newFTPClient(log, destination);
+                }
+                catch (Exception ex) {
+                    throw new ConfigException("Faild to connect to FTP server", ex);
+                }
+                if (destination.getPreflight()) {
+                    profiles.put(profileKey, preflight(destination, client));
+                }
+            }
+            finally {
+                disconnectClient(client);
+            }
+        }
+        task.setServerProfiles(Optional.of(profiles));
+
+        return resume(task.toTaskSource(), taskCount, control);
+    }
+
+    private static void validate(PluginTask task)
+    {
+        if (task.getMaxConcurrentUploads().isPresent() && task.getMaxConcurrentUploads().get() < 1) {
+            throw new ConfigException("max_concurrent_uploads must be greater than 0");
+        }
+        if (task.getCircuitBreakerThreshold().isPresent() && task.getCircuitBreakerThreshold().get() < 1) {
+            throw new ConfigException("circuit_breaker_threshold must be greater than 0");
+        }
+        if (task.getProgressLogInterval().isPresent() && task.getProgressLogInterval().get() < 1) {
+            throw new ConfigException("progress_log_interval must be greater than 0");
+        }
+        if (!SSL_DATA_PRIVATE.equals(task.getSslDataChannel()) && !SSL_DATA_CLEAR.equals(task.getSslDataChannel())) {
+            throw new ConfigException("ssl_data_channel must be \"private\" or \"clear\"");
+        }
+        if (task.getSsl() && SSL_DATA_CLEAR.equals(task.getSslDataChannel())) {
+            getDataChannelEncryptedField();
+        }
+        if (task.getKeepaliveInterval() < 0) {
+            throw new ConfigException("keepalive_interval must not be negative");
+        }
+        if (task.getProtocolTraceSize() < 0) {
+            throw new ConfigException("protocol_trace_size must not be negative");
+        }
+        if (task.getSocketSendBufferSize().isPresent() && !"auto".equals(task.getSocketSendBufferSize().get())) {
+            try {
+                if (Integer.parseInt(task.getSocketSendBufferSize().get()) < 1) {
+                    throw new ConfigException("socket_send_buffer_size must be greater than 0");
+                }
+            }
+            catch (NumberFormatException ex) {
+                throw new ConfigException("socket_send_buffer_size must be \"auto\" or a number of bytes", ex);
+            }
+        }
+        if (task.getCheckpointSize().isPresent() && task.getCheckpointSize().get() < 1) {
+            throw new ConfigException("checkpoint_size must be greater than 0");
+        }
+        if (task.getCheckpointInterval().isPresent() && task.getCheckpointInterval().get() < 1) {
+            throw new ConfigException("checkpoint_interval must be greater than 0");
+        }
+        if (isCheckpointEnabled(task) && task.getAsciiMode() && !task.getAsciiModeClientConversion()) {
+            // remote file sizes differ from local ones in ASCII mode, so a failed append can't be resumed
+            throw new ConfigException("checkpoint_size and checkpoint_interval need ascii_mode_client_conversion: true with ascii_mode");
+        }
+        if (!SPOOL_NONE.equals(task.getSpoolCompression()) && !SPOOL_DEFLATE.equals(task.getSpoolCompression())) {
+            throw new ConfigException("spool_compression must be \"none\" or \"deflate\"");
+        }
+        if (SPOOL_DEFLATE.equals(task.getSpoolCompression()) && (isCheckpointEnabled(task) || task.getCoalesceSize().isPresent())) {
+            // remote offsets and concatenated parts are counted in uncompressed bytes
+            throw new ConfigException("spool_compression: deflate can't be used with checkpoint_size, checkpoint_interval or coalesce_size");
+        }
+        if (SPOOL_DEFLATE.equals(task.getSpoolCompression()) && task.getAsciiMode() && !task.getAsciiModeClientConversion()) {
+            // ftp4j would convert line endings in the deflated bytes
+            throw new ConfigException("spool_compression: deflate needs ascii_mode_client_conversion: true with ascii_mode");
+        }
+        if (task.getMaxHostSessions().isPresent() && task.getMaxHostSessions().get() < 1) {
+            throw new ConfigException("max_host_sessions must be greater than 0");
+        }
+        if (task.getMaxHostBandwidthMbps().isPresent()
+                && (task.getMaxHostBandwidthMbps().get() < 1 || !task.getMaxHostSessions().isPresent())) {
+            throw new ConfigException("max_host_bandwidth_mbps must be greater than 0 and needs max_host_sessions");
+        }
+        if (!ShardLayout.NONE.equals(task.getShardBy()) && !ShardLayout.HASH.equals(task.getShardBy()) && !ShardLayout.TIME.equals(task.getShardBy())) {
+            throw new ConfigException("shard_by must be \"none\", \"hash\" or \"time\"");
+        }
+        if (task.getShardCount() < 1) {
+            throw new ConfigException("shard_count must be greater than 0");
+        }
+        try {
+            DateTimeFormatter.ofPattern(task.getShardTimeFormat());
+        }
+        catch (IllegalArgumentException ex) {
+            throw new ConfigException("Invalid shard_time_format: " + task.getShardTimeFormat(), ex);
+        }
+        if (task.getCoalesceSize().isPresent() && task.getCoalesceSize().get() < 1) {
+            throw new ConfigException("coalesce_size must be greater than 0");
+        }
+        if (task.getCoalesceSize().isPresent() && isCheckpointEnabled(task)) {
+            throw new ConfigException("coalesce_size can't be used with checkpoint_size or checkpoint_interval");
+        }
+        if (!COALESCE_CONCAT.equals(task.getCoalesceFormat()) && !COALESCE_TAR.equals(task.getCoalesceFormat())) {
+            throw new ConfigException("coalesce_format must be \"concat\" or \"tar\"");
+        }
+        if (task.getMinTransferRate().isPresent() && task.getMinTransferRate().get() < 1) {
+            throw new ConfigException("min_transfer_rate must be greater than 0");
+        }
+        if (task.getStallWindow() < 1) {
+            throw new ConfigException("stall_window must be greater than 0");
+        }
+        if (!SINK_FTP.equals(task.getSink()) && !SINK_NULL.equals(task.getSink()) && !SINK_LOCAL_DIR.equals(task.getSink())) {
+            throw new ConfigException("sink must be \"ftp\", \"null\" or \"local_dir\"");
+        }
+        if (SINK_LOCAL_DIR.equals(task.getSink()) && !task.getSinkLocalDir().isPresent()) {
+            throw new ConfigException("sink_local_dir is required for sink: local_dir");
+        }
+    }
+
+    /**
+     * Rejects options in destinations that only take effect at the top level because files are spooled once for all destinations.
+     */
+    private static void validateDestinations(PluginTask task)
+    {
+        for (Map<String, Object> destination : task.getDestinations()) {
+            for (String key : destination.keySet()) {
+                if (SPOOL_OPTIONS.contains(key)) {
+                    throw new ConfigException(String.format("%s can't be set in destinations. Set it at the top level", key));
+                }
+            }
+            if (destination.containsKey("path_prefix") && task.getCoalesceSize().isPresent()) {
+                // coalesced parts and their tar entries are named once for all destinations
+                throw new ConfigException("path_prefix can't be set in destinations with coalesce_size");
+            }
+        }
+    }
 
-        // try to check if plugin could connect to FTP server
-        FTPClient client = null;
+    private static ServerProfile preflight(PluginTask task, FTPClient client)
+    {
+        String pathPrefix = task.getPathPrefix();
+        if (!pathPrefix.startsWith(task.getDirectorySeparator())) {
+            pathPrefix = task.getDirectorySeparator() + pathPrefix;
+        }
+        final String directory = getRemoteDirectory(pathPrefix, task.getDirectorySeparator());
+        final ServerProfile profile;
         try {
-            client = newFTPClient(log, task);
+            profile = ServerProfile.probe(log, client, directory, task.getDirectorySeparator(), task.getPreflightWriteCheck(),
+                    RemoteDirectoryCache.of(task.getHost(), getEffectivePort(task), task.getUser().orElse("")));
         }
         catch (Exception ex) {
-            throw new ConfigException("Faild to connect to FTP server", ex);
+            throw new ConfigException(String.format("Preflight of \"%s\" on %s failed", directory, task.getHost()), ex);
+        }
+        log.info("{} supports {}. RTT: {} ms", task.getHost(), profile.getFeatures(), profile.getRttNanos() / 1_000_000);
+
+        if (isCheckpointEnabled(task) && !profile.supports("SIZE")) {
+            throw new ConfigException("checkpoint_size and checkpoint_interval need a server supporting SIZE");
+        }
+        if (task.getMinFreeSpace().isPresent()) {
+            if (!profile.getAvailableBytes().isPresent()) {
+                log.warn("{} doesn't report free space. min_free_space is not checked", task.getHost());
+            }
+            else if (profile.getAvailableBytes().get() < task.getMinFreeSpace().get()) {
+                throw new ConfigException(String.format("Only %d bytes are available on %s while min_free_space is %d",
+                        profile.getAvailableBytes().get(), task.getHost(), task.getMinFreeSpace().get()));
+            }
+        }
+        return profile;
+    }
+
+    private static String getServerProfileKey(PluginTask task)
+    {
+        return task.getUser().orElse("") + "@" + task.getHost() + ":" + getEffectivePort(task);
+    }
+
+    /**
+     * Returns the port connected to, which keys every JVM-wide registry of the server.
+     */
+    static int getEffectivePort(PluginTask task)
+    {
+        if (task.getPort().isPresent()) {
+            return task.getPort().get();
+        }
+        if (task.getSsl()) {
+            return task.getSslExplicit() ? FTPES_DEFAULT_PORT : FTPS_DEFAULT_PORT;
+        }
+        return FTP_DEFULAT_PORT;
+    }
+
+    static Optional<ServerProfile> getServerProfile(PluginTask task)
+    {
+        // not set when tasks are opened without transaction()
+        if (task.getServerProfiles() == null || !task.getServerProfiles().isPresent()) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(task.getServerProfiles().get().get(getServerProfileKey(task)));
+    }
+
+    static Optional<Long> getTransactionTimeMillis(PluginTask task)
+    {
+        // not set when tasks are opened without transaction()
+        if (task.getTransactionTimeMillis() == null) {
+            return Optional.empty();
+        }
+        return task.getTransactionTimeMillis();
+    }
+
+    private static boolean isCheckpointEnabled(PluginTask task)
+    {
+        return task.getCheckpointSize().isPresent() || task.getCheckpointInterval().isPresent();
+    }
+
+    /**
+     * Returns one task per FTP server. Each element of destinations is merged over the task itself.
+     */
+    static List<PluginTask> getDestinationTasks(PluginTask task)
+    {
+        if (task.getDestinations().isEmpty()) {
+            return Collections.singletonList(task);
+        }
+        final List<PluginTask> tasks = new ArrayList<>();
+        for (Map<String, Object> destination : task.getDestinations()) {
+            final TaskSource source = task.toTaskSource();
+            source.set("destinations", Collections.emptyList());
+            for (Map.Entry<String, Object> entry : destination.entrySet()) {
+                source.set(entry.getKey(), entry.getValue());
+            }
+            final PluginTask destinationTask = TASK_MAPPER.map(source, PluginTask.class);
+            destinationTask.setSSLConfig(SSLPlugins.configure(destinationTask));
+            tasks.add(destinationTask);
+        }
+        return tasks;
+    }
+
+    @Override
+    public ConfigDiff resume(TaskSource taskSource, int taskCount, FileOutputPlugin.Control control)
+    {
+        final PluginTask task = TASK_MAPPER.map(taskSource, PluginTask.class);
+        final List<TaskReport> reports;
+        try {
+            reports = control.run(taskSource);
         }
         finally {
-            disconnectClient(client);
+            if (task.getCoalesceSize().isPresent()) {
+                Coalescer.remove(getCoalescerKey(task));
+            }
+        }
+        if (task.getCoalesceSize().isPresent()) {
+            checkCoalescedParts(reports);
+        }
+
+        final List<PluginTask> destinations = getDestinationTasks(task);
+        for (int i = 0; i < destinations.size(); i++) {
+            if (destinations.get(i).getShardManifestPath().isPresent()) {
+                writeManifest(destinations.get(i), getManifestEntries(reports, i));
+            }
+        }
+
+        return CONFIG_MAPPER_FACTORY.newConfigDiff();
+    }
+
+    /**
+     * Identifies the coalesced parts of one transaction by every option that makes them differ.
+     */
+    static String getCoalescerKey(PluginTask task)
+    {
+        final List<Object> key = new ArrayList<>();
+        for (PluginTask destination : getDestinationTasks(task)) {
+            key.add(destination.getHost() + ":" + getEffectivePort(destination) + destination.getPathPrefix());
+        }
+        Collections.addAll(key, task.getFileNameExtension(), task.getSequenceFormat(), task.getCoalesceSize().orElse(null),
+                task.getCoalesceFormat(), getTransactionTimeMillis(task).orElse(null));
+        return key.toString();
+    }
+
+    /**
+     * Fails the transaction if a task committed with rows in a coalesced part that no task uploaded,
+     * e.g. because the task that took over the part failed.
+     */
+    static void checkCoalescedParts(List<TaskReport> reports)
+    {
+        final Set<String> contributed = new TreeSet<>();
+        final Set<String> uploaded = new HashSet<>();
+        for (TaskReport report : reports) {
+            if (report.has("coalesce")) {
+                @SuppressWarnings("unchecked")
+                final Map<String, List<String>> coalesce = report.get(Map.class, "coalesce");
+                contributed.addAll(coalesce.get("parts"));
+                uploaded.addAll(coalesce.get("uploaded_parts"));
+            }
+        }
+        contributed.removeAll(uploaded);
+        if (!contributed.isEmpty()) {
+            throw new RuntimeException(String.format(
+                    "Coalesced parts %s with rows of committed tasks were not uploaded. Run the transaction again without resuming", contributed));
+        }
+    }
+
+    /**
+     * Collects the manifest entries of the destination at {@code index} from task reports, ordered by the file name.
+     */
+    static List<List<String>> getManifestEntries(List<TaskReport> reports, int index)
+    {
+        final List<List<String>> entries = new ArrayList<>();
+        for (TaskReport report : reports) {
+            if (report.has("manifest")) {
+                @SuppressWarnings("unchecked")
+                final List<List<List<String>>> manifests = report.get(List.class, "manifest");
+                entries.addAll(manifests.get(index));
+            }
+        }
+        entries.sort((a, b) -> a.get(0).compareTo(b.get(0)));
+        return entries;
+    }
+
+    private static void writeManifest(PluginTask task, List<List<String>> entries)
+    {
+        final StringBuilder manifest = new StringBuilder();
+        for (List<String> entry : entries) {
+            manifest.append(entry.get(0)).append('\t').append(entry.get(1)).append('\n');
+        }
+        final byte[] bytes = manifest.toString().getBytes(StandardCharsets.UTF_8);
+        String path = task.getShardManifestPath().get();
+        if (!path.startsWith(task.getDirectorySeparator())) {
+            path = task.getDirectorySeparator() + path;
+        }
+
+        if (SINK_NULL.equals(task.getSink())) {
+            return;
+        }
+        if (SINK_LOCAL_DIR.equals(task.getSink())) {
+            try {
+                final Path localPath = Paths.get(task.getSinkLocalDir().get(), path);
+                Files.createDirectories(localPath.getParent());
+                Files.write(localPath, bytes);
+            }
+            catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        else {
+            FTPClient client = null;
+            try {
+                client = newFTPClient(log, task);
+                final String separator = task.getDirectorySeparator();
+                final String directory = getRemoteDirectory(path, separator);
+                // may be a shard directory that no task created
+                changeOrCreateDirectories(client, directory, separator,
+                        RemoteDirectoryCache.of(task.getHost(), getEffectivePort(task), task.getUser().orElse("")), true);
+                client.changeDirectory(directory);
+                final String fileName = path.substring(path.lastIndexOf(separator) + separator.length());
+                client.upload(fileName, new ByteArrayInputStream(bytes), 0L, 0L, null);
+            }
+            catch (FTPIllegalReplyException | FTPException | FTPDataTransferException | FTPAbortedException | IOException ex) {
+                throw new RuntimeException("Failed to upload manifest " + path, ex);
+            }
+            finally {
+                disconnectClient(client);
+            }
+        }
+        log.info("Wrote manifest of {} files to \"{}\"", entries.size(), path);
+    }
+
+    @Override
+    public void cleanup(TaskSource taskSource, int taskCount, List<TaskReport> successTaskReports)
+    {
+    }
+
+    @Override
+    public TransactionalFileOutput open(TaskSource taskSource, final int taskIndex)
+    {
+        final PluginTask task = TASK_MAPPER.map(taskSource, PluginTask.class);
+
+        return new FtpFileOutput(task, taskIndex);
+    }
+
+    public static class FtpFileOutput implements TransactionalFileOutput
+    {
+        private final List<Destination> destinations = new ArrayList<>();
+        private final int quorum;
+        private final ExecutorService executor;
+        private final boolean crlfConversion;
+        private final boolean deflatedSpool;
+        private final Optional<Long> checkpointSize;
+        private final Optional<Long> checkpointNanos;
+        private final Optional<Coalescer> coalescer;
+        private final String entryPrefix;
+        private final String entrySuffix;
+        private final String sequenceFormat;
+        private final TransferMetrics.TaskRollup transfers;
+        // ids of the coalesced parts uploaded by this task
+        private final List<String> uploadedParts = new ArrayList<>();
+        private OutputStream output = null;
+        private int fileIndex;
+        private int spooledFileIndex;
+        private File file;
+        private long spooledBytes;
+        private long remoteOffset;
+        private long lastCheckpointNanos;
+        private int taskIndex;
+        // time spent before add() is called (input, parser, formatter and encoders), in add() and in uploads
+        private long upstreamNanos;
+        private long spoolNanos;
+        private long uploadNanos;
+        private long totalBytes;
+        private long lastReturnNanos;
+        private boolean released = false;
+
+        public FtpFileOutput(PluginTask task, int taskIndex)
+        {
+            for (PluginTask destination : getDestinationTasks(task)) {
+                destinations.add(new Destination(destination));
+            }
+            this.quorum = task.getDestinationQuorum().orElse(destinations.size());
+            if (destinations.size() > 1) {
+                this.executor = Executors.newFixedThreadPool(destinations.size(), runnable -> {
+                    final Thread thread = new Thread(runnable, "embulk-output-ftp-destination");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            else {
+                this.executor = null;
+            }
+            this.crlfConversion = task.getAsciiMode() && task.getAsciiModeClientConversion();
+            this.deflatedSpool = SPOOL_DEFLATE.equals(task.getSpoolCompression());
+            this.checkpointSize = task.getCheckpointSize();
+            this.checkpointNanos = task.getCheckpointInterval().map(seconds -> seconds * 1_000_000_000L);
+            this.coalescer = task.getCoalesceSize().map(size ->
+                    Coalescer.of(getCoalescerKey(task), size, COALESCE_TAR.equals(task.getCoalesceFormat())));
+            this.coalescer.ifPresent(Coalescer::open);
+            // tar entries are named after the remote files they replace
+            final Path prefix = Paths.get(task.getPathPrefix() + "x").getFileName();
+            final String name = prefix == null ? "x" : prefix.toString();
+            this.entryPrefix = name.substring(0, name.length() - 1);
+            this.entrySuffix = task.getFileNameExtension().startsWith(".") ? task.getFileNameExtension() : "." + task.getFileNameExtension();
+            this.sequenceFormat = task.getSequenceFormat();
+            this.transfers = new TransferMetrics.TaskRollup(taskIndex);
+            this.taskIndex = taskIndex;
+        }
+
+        @Override
+        public void nextFile()
+        {
+            // upload the previous file over the same connection before spooling the next one
+            closeFile();
+            uploadFile();
+
+            spooledFileIndex = fileIndex;
+            remoteOffset = 0;
+            openSpool(false);
+            lastReturnNanos = System.nanoTime();
+        }
+
+        private void openSpool(boolean lastWasCr)
+        {
+            try {
+                file = Exec.getTempFileSpace().createTempFile("tmp");
+                log.info("Writing local temporary file \"{}\"", file.getAbsolutePath());
+                output = new BufferedOutputStream(new FileOutputStream(file));
+                if (deflatedSpool) {
+                    // deflated once here instead of by ftp4j on every upload with MODE Z
+                    output = new BufferedOutputStream(new DeflaterOutputStream(output));
+                }
+                if (crlfConversion) {
+                    output = new CrlfOutputStream(output, lastWasCr);
+                }
+                spooledBytes = 0;
+                lastCheckpointNanos = System.nanoTime();
+            }
+            catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        private void closeSpool()
+        {
+            try {
+                output.close();
+                output = null;
+            }
+            catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        private void closeFile()
+        {
+            if (output != null) {
+                closeSpool();
+                fileIndex++;
+            }
+        }
+
+        @Override
+        public void add(Buffer buffer)
+        {
+            final long startNanos = System.nanoTime();
+            upstreamNanos += startNanos - lastReturnNanos;
+            try {
+                output.write(buffer.array(), buffer.offset(), buffer.limit());
+                spooledBytes += buffer.limit();
+                totalBytes += buffer.limit();
+            }
+            catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            finally {
+                buffer.release();
+            }
+            spoolNanos += System.nanoTime() - startNanos;
+            if ((checkpointSize.isPresent() && spooledBytes >= checkpointSize.get())
+                    || (checkpointNanos.isPresent() && System.nanoTime() - lastCheckpointNanos >= checkpointNanos.get())) {
+                checkpoint();
+            }
+            lastReturnNanos = System.nanoTime();
+        }
+
+        /**
+         * Appends the bytes spooled since the last checkpoint to the remote file and starts a new spool,
+         * so that a failure loses at most one checkpoint of data and local disk usage stays bounded.
+         */
+        private void checkpoint()
+        {
+            final boolean lastWasCr = crlfConversion && ((CrlfOutputStream) output).endsWithCr();
+            closeSpool();
+            uploadFile();
+            openSpool(lastWasCr);
+        }
+
+        @Override
+        public void finish()
+        {
+            closeFile();
+            uploadFile();
+            if (coalescer.isPresent()) {
+                try {
+                    released = true;
+                    final Optional<Coalescer.Part> rest = coalescer.get().release(taskIndex, true);
+                    if (rest.isPresent()) {
+                        uploadPart(rest.get());
+                    }
+                }
+                catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+            for (Destination destination : destinations) {
+                destination.disconnect();
+            }
+            log.info("Task {} wrote {} bytes. upstream: {} ms, spool: {} ms ({}), upload: {} ms ({})",
+                    taskIndex, totalBytes, upstreamNanos / 1_000_000,
+                    spoolNanos / 1_000_000, formatThroughput(totalBytes, spoolNanos),
+                    uploadNanos / 1_000_000, formatThroughput(totalBytes, uploadNanos));
+        }
+
+        private String formatThroughput(long bytes, long nanos)
+        {
+            if (nanos <= 0) {
+                return "-";
+            }
+            return String.format("%.1f MB/s", bytes * 1000.0 / nanos);
+        }
+
+        private void uploadFile()
+        {
+            if (file == null) {
+                return;
+            }
+            final long startNanos = System.nanoTime();
+            if (coalescer.isPresent()) {
+                final Optional<Coalescer.Part> part;
+                try {
+                    part = coalescer.get().add(file, entryPrefix + String.format(sequenceFormat, taskIndex, spooledFileIndex) + entrySuffix, taskIndex);
+                }
+                catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+                file = null;
+                if (part.isPresent()) {
+                    uploadPart(part.get());
+                }
+                uploadNanos += System.nanoTime() - startNanos;
+                return;
+            }
+            final long length = file.length();
+            // nothing to append if nothing was spooled after the last checkpoint
+            if (length > 0 || remoteOffset == 0) {
+                uploadToDestinations(file, taskIndex, spooledFileIndex, remoteOffset);
+            }
+            remoteOffset += length;
+            deleteFile(file);
+            file = null;
+            uploadNanos += System.nanoTime() - startNanos;
+        }
+
+        private void uploadPart(Coalescer.Part part)
+        {
+            final long startNanos = System.nanoTime();
+            try {
+                uploadToDestinations(part.file, part.taskIndex, part.partIndex, 0);
+            }
+            catch (RuntimeException | Error ex) {
+                // the part has files of other tasks, which fail unless they have committed already
+                coalescer.get().discard(part);
+                throw ex;
+            }
+            uploadedParts.add(part.getId());
+            deleteFile(part.file);
+            uploadNanos += System.nanoTime() - startNanos;
+        }
+
+        private void deleteFile(File file)
+        {
+            if (!file.delete()) {
+                throw new ConfigException("Couldn't delete local file " + file.getAbsolutePath());
+            }
+            log.info("Deleted local temporary file \"{}\"", file.getAbsolutePath());
+        }
+
+        private void uploadToDestinations(File file, int fileTaskIndex, int fileIndex, long remoteOffset)
+        {
+            if (executor == null) {
+                destinations.get(0).upload(file, fileTaskIndex, fileIndex, remoteOffset);
+                return;
+            }
+
+            final List<Destination> targets = new ArrayList<>();
+            final List<Future<Void>> futures = new ArrayList<>();
+            for (Destination destination : destinations) {
+                // a destination that missed a file would end up with an incomplete output, so it is not retried
+                if (!destination.failed) {
+                    targets.add(destination);
+                    futures.add(executor.submit(() -> {
+                        destination.upload(file, fileTaskIndex, fileIndex, remoteOffset);
+                        return null;
+                    }));
+                }
+            }
+
+            RuntimeException firstFailure = null;
+            for (int i = 0; i < futures.size(); i++) {
+                final Destination destination = targets.get(i);
+                try {
+                    futures.get(i).get();
+                }
+                catch (ExecutionException ex) {
+                    destination.failed = true;
+                    log.warn("Giving up uploading to {}:{}: {}", destination.task.getHost(), destination.getPort(), ex.getCause().toString());
+                    if (ex.getCause() instanceof Error) {
+                        throw (Error) ex.getCause();
+                    }
+                    if (firstFailure == null) {
+                        firstFailure = ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause() : new RuntimeException(ex.getCause());
+                    }
+                }
+                catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+
+            final long succeeded = destinations.stream().filter(destination -> !destination.failed).count();
+            if (succeeded < quorum) {
+                throw firstFailure != null ? firstFailure : new RuntimeException(
+                        String.format("Only %d destinations are available while destination_quorum is %d", succeeded, quorum));
+            }
         }
 
-        return resume(task.toTaskSource(), taskCount, control);
-    }
+        @Override
+        public void close()
+        {
+            closeFile();
+            for (Destination destination : destinations) {
+                destination.disconnect();
+            }
+            if (coalescer.isPresent() && !released) {
+                released = true;
+                try {
+                    coalescer.get().release(taskIndex, false);
+                }
+                catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+
+        @Override
+        public void abort() {}
+
+        @Override
+        public TaskReport commit()
+        {
+            final TaskReport report = CONFIG_MAPPER_FACTORY.newTaskReport();
+            report.set("transfer", transfers.toReport());
+            if (coalescer.isPresent()) {
+                final Map<String, Object> coalesce = new LinkedHashMap<>();
+                coalesce.put("parts", coalescer.get().getContributions(taskIndex));
+                coalesce.put("uploaded_parts", uploadedParts);
+                report.set("coalesce", coalesce);
+            }
+            if (destinations.stream().anyMatch(destination -> !SINK_FTP.equals(destination.task.getSink()))) {
+                report.set("bytes", totalBytes);
+                report.set("upstream_millis", upstreamNanos / 1_000_000);
+                report.set("spool_millis", spoolNanos / 1_000_000);
+                report.set("upload_millis", uploadNanos / 1_000_000);
+            }
+            if (destinations.stream().anyMatch(destination -> destination.task.getShardManifestPath().isPresent())) {
+                final List<List<List<String>>> manifests = new ArrayList<>();
+                for (Destination destination : destinations) {
+                    manifests.add(destination.manifest);
+                }
+                report.set("manifest", manifests);
+            }
+            if (executor != null) {
+                final List<Map<String, Object>> sections = new ArrayList<>();
+                for (Destination destination : destinations) {
+                    sections.add(destination.report());
+                }
+                report.set("destinations", sections);
+            }
+            return report;
+        }
+
+        /**
+         * Uploads spooled files to one FTP server, reusing its connection across files.
+         */
+        private class Destination
+        {
+            private final PluginTask task;
+            private final int port;
+            private final Optional<UploadScheduler> scheduler;
+            private final Optional<CircuitBreaker> breaker;
+            private final TransferMetrics metrics;
+            private final Optional<Long> slowThresholdMillis;
+            private final RemoteDirectoryCache directories;
+            private final String pathPrefix;
+            private final String sequenceFormat;
+            private final String pathSuffix;
+            private final int maxTransferRetry;
+            private final String separator;
+            private final boolean resumable;
+            private final boolean deflatedSpool;
+            private final Optional<HedgedUpload> hedging;
+            private final AtomicInteger nextHedgeHost = new AtomicInteger();
+            private final Optional<HostSessionLimiter> sessionLimiter;
+            private final ShardLayout shards;
+            // pairs of the file name without shards and the remote path, for shard_manifest_path
+            private final List<List<String>> manifest = new ArrayList<>();
+            private HostSessionLimiter.Session session = null;
+            // a slot of scheduler is held while the connection is open
+            private boolean admitted = false;
+            private FTPClient client = null;
+            private boolean failed = false;
+            private int uploadedFiles = 0;
+            private long uploadedBytes = 0;
+
+            Destination(PluginTask task)
+            {
+                this.task = task;
+                this.port = getEffectivePort(task);
+                this.scheduler = task.getMaxConcurrentUploads().map(max -> UploadScheduler.of(task.getHost(), getPort(), max));
+                this.breaker = getCircuitBreaker(task);
+                this.metrics = TransferMetrics.of(task.getHost(), getPort());
+                this.slowThresholdMillis = task.getProtocolTraceSlowThreshold().map(seconds -> seconds * 1000L);
+                this.directories = RemoteDirectoryCache.of(task.getHost(), getPort(), task.getUser().orElse(""));
+                // created by preflight
+                getServerProfile(task).flatMap(ServerProfile::getDirectory).ifPresent(directories::add);
+                if (task.getMetricsJmx()) {
+                    metrics.registerMBean();
+                }
+                if (task.getMetricsJmx() || task.getProgressLogInterval().isPresent()) {
+                    TransferMetrics.startSampler(task.getProgressLogInterval().orElse(0));
+                }
+                this.pathPrefix = task.getPathPrefix();
+                this.sequenceFormat = task.getSequenceFormat();
+                this.pathSuffix = task.getFileNameExtension();
+                this.maxTransferRetry = task.getMaxTransferRetry().orElse(task.getMaxConnectionRetry());
+                this.separator = task.getDirectorySeparator();
+                this.resumable = isCheckpointEnabled(task);
+                this.deflatedSpool = SPOOL_DEFLATE.equals(task.getSpoolCompression());
+                this.sessionLimiter = newSessionLimiter(task, getPort());
+                this.shards = new ShardLayout(task.getShardBy(), task.getShardCount(), ShardLayout.TIME.equals(task.getShardBy())
+                        ? DateTimeFormatter.ofPattern(task.getShardTimeFormat()).withZone(ZoneOffset.UTC).format(Instant.ofEpochMilli(getShardTimeMillis(task)))
+                        : null, separator);
+                this.hedging = task.getMinTransferRate().map(rate ->
+                        new HedgedUpload(log, rate, task.getStallWindow(), this::openHedge, this::openSpool));
+            }
+
+            private long getShardTimeMillis(PluginTask task)
+            {
+                final Optional<Long> millis = getTransactionTimeMillis(task);
+                if (!millis.isPresent()) {
+                    log.warn("Transaction time is not set. Sharding files of this task by the current time");
+                    return System.currentTimeMillis();
+                }
+                return millis.get();
+            }
+
+            /**
+             * Returns the task to open a hedge connection with, rotating through hedge_hosts if any.
+             * The hedge gives up at once instead of retrying to connect, because the stalled upload goes on meanwhile.
+             */
+            private PluginTask getHedgeTask()
+            {
+                final TaskSource source = task.toTaskSource();
+                source.set("max_connection_retry", 0);
+                final List<String> hosts = task.getHedgeHosts();
+                if (!hosts.isEmpty()) {
+                    source.set("host", hosts.get(Math.floorMod(nextHedgeHost.getAndIncrement(), hosts.size())));
+                }
+                return TASK_MAPPER.map(source, PluginTask.class);
+            }
+
+            /**
+             * Connects for a hedged upload if the hedge server's breaker is closed and it has a free slot
+             * in max_concurrent_uploads and max_host_sessions. Returns null otherwise.
+             */
+            private HedgedUpload.Connection openHedge() throws IOException
+            {
+                final PluginTask hedgeTask = getHedgeTask();
+                final int hedgePort = getEffectivePort(hedgeTask);
+                final Optional<CircuitBreaker> hedgeBreaker = getCircuitBreaker(hedgeTask);
+                if (hedgeBreaker.isPresent() && hedgeBreaker.get().isOpen()) {
+                    return null;
+                }
+                final Optional<UploadScheduler> hedgeScheduler = hedgeTask.getMaxConcurrentUploads()
+                        .map(max -> UploadScheduler.of(hedgeTask.getHost(), hedgePort, max));
+                if (hedgeScheduler.isPresent() && !hedgeScheduler.get().tryAcquire()) {
+                    return null;
+                }
+                final List<AutoCloseable> slots = new ArrayList<>();
+                hedgeScheduler.ifPresent(s -> slots.add(s::release));
+                try {
+                    final Optional<HostSessionLimiter> hedgeLimiter = newSessionLimiter(hedgeTask, hedgePort);
+                    if (hedgeLimiter.isPresent()) {
+                        final Optional<HostSessionLimiter.Session> hedgeSession = hedgeLimiter.get().tryAcquire();
+                        if (!hedgeSession.isPresent()) {
+                            releaseHedgeSlots(slots);
+                            return null;
+                        }
+                        slots.add(hedgeSession.get());
+                    }
+                    final FTPClient hedgeClient = newFTPClient(log, hedgeTask);
+                    final boolean sameServer = hedgeTask.getHost().equals(task.getHost()) && hedgePort == getPort();
+                    return new HedgedUpload.Connection(hedgeClient, sameServer, () -> releaseHedgeSlots(slots));
+                }
+                catch (IOException | RuntimeException ex) {
+                    releaseHedgeSlots(slots);
+                    throw ex;
+                }
+            }
+
+            private void releaseHedgeSlots(List<AutoCloseable> slots)
+            {
+                for (AutoCloseable slot : slots) {
+                    try {
+                        slot.close();
+                    }
+                    catch (Exception ex) {
+                        log.warn("Failed to release a slot of hedged upload: {}", ex.toString());
+                    }
+                }
+            }
 
-    @Override
-    public ConfigDiff resume(TaskSource taskSource, int taskCount, FileOutputPlugin.Control control)
-    {
-        control.run(taskSource);
+            int getPort()
+            {
+                return port;
+            }
 
-        return CONFIG_MAPPER_FACTORY.newConfigDiff();
-    }
+            Map<String, Object> report()
+            {
+                final Map<String, Object> section = new LinkedHashMap<>();
+                section.put("host", task.getHost());
+                section.put("port", getPort());
+                section.put("succeeded", !failed);
+                section.put("uploaded_files", uploadedFiles);
+                section.put("uploaded_bytes", uploadedBytes);
+                return section;
+            }
 
-    @Override
-    public void cleanup(TaskSource taskSource, int taskCount, List<TaskReport> successTaskReports)
-    {
-    }
+            /**
+             * Reads the spooled file as an upload would, then discards it or copies it under sink_local_dir.
+             */
+            private void writeToSink(File file, String filePath, long remoteOffset)
+            {
+                try (InputStream in = openSpool(file);
+                        OutputStream out = SINK_LOCAL_DIR.equals(task.getSink())
+                                ? openSinkFile(filePath, remoteOffset > 0) : new NullOutputStream()) {
+                    final byte[] buffer = new byte[64 * 1024];
+                    int n;
+                    while ((n = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, n);
+                    }
+                }
+                catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+                if (remoteOffset == 0) {
+                    uploadedFiles++;
+                }
+                uploadedBytes += file.length();
+            }
 
-    @Override
-    public TransactionalFileOutput open(TaskSource taskSource, final int taskIndex)
-    {
-        final PluginTask task = TASK_MAPPER.map(taskSource, PluginTask.class);
+            /**
+             * Opens the spooled file to upload over {@code client}. A deflated spool is sent as is over MODE Z,
+             * and inflated for servers without MODE Z.
+             *
+             * ftp4j would deflate the deflated spool again, so MODE Z is sent behind its back right before the upload.
+             * ftp4j never sends MODE S then, so the connection is only used for spool uploads afterwards.
+             */
+            private InputStream openSpool(File file, FTPClient client) throws IOException, FTPIllegalReplyException, FTPException
+            {
+                if (!deflatedSpool || !client.isCompressionSupported()) {
+                    return openSpool(file);
+                }
+                final FTPReply reply = client.sendCustomCommand("MODE Z");
+                if (!reply.isSuccessCode()) {
+                    throw new FTPException(reply);
+                }
+                return new BufferedInputStream(new FileInputStream(file));
+            }
 
-        FTPClient client = newFTPClient(log, task);
-        return new FtpFileOutput(client, task, taskIndex);
-    }
+            /**
+             * Opens the spooled file as uncompressed bytes.
+             */
+            private InputStream openSpool(File file) throws IOException
+            {
+                final InputStream in = new BufferedInputStream(new FileInputStream(file));
+                if (deflatedSpool) {
+                    return new InflaterInputStream(in);
+                }
+                return in;
+            }
 
-    public static class FtpFileOutput implements TransactionalFileOutput
-    {
-        private final FTPClient client;
-        private final String pathPrefix;
-        private final String sequenceFormat;
-        private final String pathSuffix;
-        private final int maxConnectionRetry;
-        private final String separator;
-        private BufferedOutputStream output = null;
-        private int fileIndex;
-        private File file;
-        private String filePath;
-        private String remoteDirectory;
-        private int taskIndex;
+            private OutputStream openSinkFile(String filePath, boolean append) throws IOException
+            {
+                final Path path = Paths.get(task.getSinkLocalDir().get(), filePath);
+                Files.createDirectories(path.getParent());
+                return new BufferedOutputStream(new FileOutputStream(path.toFile(), append));
+            }
 
-        public FtpFileOutput(FTPClient client, PluginTask task, int taskIndex)
-        {
-            this.client = client;
-            this.taskIndex = taskIndex;
-            this.pathPrefix = task.getPathPrefix();
-            this.sequenceFormat = task.getSequenceFormat();
-            this.pathSuffix = task.getFileNameExtension();
-            this.maxConnectionRetry = task.getMaxConnectionRetry();
-            this.separator = task.getDirectorySeparator();
-        }
+            void disconnect()
+            {
+                disconnectClient(client);
+                client = null;
+                if (admitted) {
+                    scheduler.get().release();
+                    admitted = false;
+                }
+                if (session != null) {
+                    try {
+                        session.close();
+                    }
+                    catch (IOException ex) {
+                        log.warn("Failed to release session lock: {}", ex.toString());
+                    }
+                    session = null;
+                }
+            }
 
-        @Override
-        public void nextFile()
-        {
-            closeFile();
+            /**
+             * Returns whether another task in this JVM waits for an upload slot, or another task in any process
+             * waits for the session held by this destination.
+             */
+            private boolean hasWaiters()
+            {
+                if (scheduler.isPresent() && scheduler.get().hasWaiters()) {
+                    return true;
+                }
+                if (session == null) {
+                    return false;
+                }
+                try {
+                    return sessionLimiter.get().hasWaiters();
+                }
+                catch (IOException ex) {
+                    log.warn("Failed to look for tasks waiting for a session: {}", ex.toString());
+                    return false;
+                }
+            }
 
-            try {
+            /**
+             * Uploads {@code file} as the part of the remote file starting at {@code remoteOffset}.
+             * The remote file name is formatted with sequence_format from {@code fileTaskIndex} and {@code fileIndex}.
+             */
+            void upload(File file, int fileTaskIndex, int fileIndex, long remoteOffset)
+            {
                 String suffix = pathSuffix;
                 if (!suffix.startsWith(".")) {
                     suffix = "." + suffix;
                 }
-                filePath = pathPrefix + String.format(sequenceFormat, taskIndex, fileIndex) + suffix;
-                if (!filePath.startsWith(separator)) {
-                    filePath = separator + filePath;
+                if (task.getCoalesceSize().isPresent() && COALESCE_TAR.equals(task.getCoalesceFormat())) {
+                    suffix = suffix + ".tar";
                 }
-                remoteDirectory = getRemoteDirectory(filePath, separator);
-                file = Exec.getTempFileSpace().createTempFile("tmp");
-                log.info("Writing local temporary file \"{}\"", file.getAbsolutePath());
-                output = new BufferedOutputStream(new FileOutputStream(file));
-            }
-            catch (IOException ex) {
-                throw new RuntimeException(ex);
-            }
-        }
+                final String name = String.format(sequenceFormat, fileTaskIndex, fileIndex) + suffix;
+                final String filePath = toAbsolutePath(shards.apply(pathPrefix, fileTaskIndex, fileIndex) + name);
+                final String remoteDirectory = getRemoteDirectory(filePath, separator);
 
-        private void closeFile()
-        {
-            if (output != null) {
-                try {
-                    output.close();
-                    fileIndex++;
+                if (!SINK_FTP.equals(task.getSink())) {
+                    writeToSink(file, filePath, remoteOffset);
                 }
-                catch (IOException ex) {
-                    throw new RuntimeException(ex);
+                else {
+                    uploadWithRetry(file, filePath, remoteDirectory, remoteOffset);
+                }
+                if (remoteOffset == 0 && task.getShardManifestPath().isPresent()) {
+                    manifest.add(Arrays.asList(toAbsolutePath(pathPrefix + name), filePath));
                 }
             }
-        }
 
-        @Override
-        public void add(Buffer buffer)
-        {
-            try {
-                output.write(buffer.array(), buffer.offset(), buffer.limit());
-            }
-            catch (IOException ex) {
-                throw new RuntimeException(ex);
-            }
-            finally {
-                buffer.release();
+            private String toAbsolutePath(String path)
+            {
+                return path.startsWith(separator) ? path : separator + path;
             }
-        }
-
-        @Override
-        public void finish()
-        {
-            close();
-            uploadFile();
-            disconnectClient(client);
-        }
 
-        private Void uploadFile()
-        {
-            if (filePath != null) {
+            private void uploadWithRetry(File file, String filePath, String remoteDirectory, long remoteOffset)
+            {
+                final long length = file.length();
+                metrics.enqueue(length);
                 try {
-                    return RetryExecutor.builder()
-                            .withRetryLimit(maxConnectionRetry)
+                    RetryExecutor.builder()
+                            .withRetryLimit(maxTransferRetry)
                             .withInitialRetryWaitMillis(500)
                             .withMaxRetryWaitMillis(30 * 1000)
                             .build()
                             .runInterruptible(new Retryable<Void>() {
+                                private int attempts = 0;
+
                                 @Override
                                 public Void call() throws FTPIllegalReplyException, FTPException, FTPDataTransferException,
-                                                          FTPAbortedException, IOException, RetryGiveupException
+                                                          FTPAbortedException, IOException, RetryGiveupException, InterruptedException
                                 {
+                                    if (breaker.isPresent()) {
+                                        breaker.get().checkClosed();
+                                    }
+                                    if (!admitted && scheduler.isPresent()) {
+                                        // held while the connection is open, so that it bounds control sessions
+                                        scheduler.get().acquire();
+                                        admitted = true;
+                                    }
+                                    if (client == null && session == null && sessionLimiter.isPresent()) {
+                                        // held while the connection is open
+                                        session = sessionLimiter.get().acquire();
+                                    }
                                     try {
-                                        client.changeDirectory(remoteDirectory);
+                                        upload();
+                                        if (breaker.isPresent()) {
+                                            breaker.get().recordSuccess();
+                                        }
+                                        if (scheduler.isPresent()) {
+                                            scheduler.get().recordSuccess();
+                                        }
+                                        if (hasWaiters()) {
+                                            // don't keep an idle connection while another task or process waits for a slot
+                                            disconnect();
+                                        }
                                     }
-                                    catch (FTPException e) {
+                                    catch (Exception ex) {
+                                        final ProtocolFlightRecorder recorder = ProtocolFlightRecorder.of(client);
+                                        if (recorder != null) {
+                                            recorder.dump(log, String.format("Upload of \"%s\" failed: %s", filePath, ex));
+                                        }
+                                        final FtpRetryPolicy.Failure failure = FtpRetryPolicy.classify(ex);
+                                        if (scheduler.isPresent() && failure == FtpRetryPolicy.Failure.OVERLOADED) {
+                                            scheduler.get().onOverload();
+                                        }
+                                        // connection failures were counted by connect() already
+                                        if (breaker.isPresent() && failure != FtpRetryPolicy.Failure.PERMANENT
+                                                && !FtpRetryPolicy.isRetriedAlready(ex)) {
+                                            breaker.get().recordFailure();
+                                        }
+                                        // the connection may be broken, so the next attempt reconnects
+                                        // and other processes may use the session while this one waits to retry
+                                        disconnect();
+                                        throw ex;
+                                    }
+                                    return null;
+                                }
+
+                                private void upload() throws FTPIllegalReplyException, FTPException, FTPDataTransferException,
+                                                             FTPAbortedException, IOException
+                                {
+                                    if (client == null) {
+                                        client = newFTPClient(log, task);
+                                    }
+                                    final boolean cachedDirectory = directories.contains(remoteDirectory);
+                                    changeOrCreateDirectory(remoteDirectory);
+                                    attempts++;
+                                    final long startMillis = System.currentTimeMillis();
+                                    FTPDataTransferListener listener = new LoggingTransferListener(file.getAbsolutePath(), filePath, log,
+                                            TRANSFER_NOTICE_BYTES, metrics.newProgress(transfers, filePath, file.length()));
+                                    if (session != null) {
+                                        listener = session.throttle(listener);
+                                    }
+                                    if (!resumable || (remoteOffset == 0 && attempts == 1)) {
                                         try {
-                                            client.createDirectory(remoteDirectory);
+                                            store(listener);
+                                        }
+                                        catch (FTPException ex) {
+                                            if (!cachedDirectory || (ex.getCode() != 550 && ex.getCode() != 553)) {
+                                                throw ex;
+                                            }
+                                            // the cached directory may have been removed by someone else
+                                            log.info("Creating directory \"{}\" again after {} {}", remoteDirectory, ex.getCode(), ex.getMessage());
+                                            directories.invalidate(remoteDirectory, separator);
+                                            changeOrCreateDirectory(remoteDirectory);
+                                            store(listener);
+                                        }
+                                    }
+                                    else {
+                                        // a failed attempt may have appended a part of this file already
+                                        final long remoteSize = attempts == 1 ? remoteOffset : getRemoteSize(filePath);
+                                        if (remoteSize < remoteOffset || remoteSize > remoteOffset + file.length()) {
+                                            throw new OperationDeniedException(String.format(
+                                                    "Remote file \"%s\" has %d bytes while %d bytes were uploaded", filePath, remoteSize, remoteOffset));
                                         }
-                                        catch (FTPException e1) {
-                                            if (e1.getCode() == 550) {
-                                                // Create directory operation failed
-                                                throw new OperationDeniedException(e1);
+                                        log.info("Appending to \"{}\" from {} bytes", filePath, remoteSize);
+                                        try (InputStream in = openSpool(file, client)) {
+                                            if (hedging.isPresent()) {
+                                                hedging.get().append(client, filePath, in, remoteSize - remoteOffset, listener);
+                                            }
+                                            else {
+                                                client.append(filePath, in, remoteSize - remoteOffset, listener);
                                             }
                                         }
                                     }
-                                    try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(file))) {
-                                        client.upload(filePath, in, 0L, 0L,
-                                                new LoggingTransferListener(file.getAbsolutePath(), filePath, log, TRANSFER_NOTICE_BYTES)
-                                        );
+                                    directories.add(remoteDirectory);
+                                    final long elapsedMillis = System.currentTimeMillis() - startMillis;
+                                    if (slowThresholdMillis.isPresent() && elapsedMillis >= slowThresholdMillis.get()) {
+                                        final ProtocolFlightRecorder recorder = ProtocolFlightRecorder.of(client);
+                                        if (recorder != null) {
+                                            recorder.dump(log, String.format("Upload of \"%s\" took %d ms", filePath, elapsedMillis));
+                                        }
                                     }
-                                    if (!file.delete()) {
-                                        throw new ConfigException("Couldn't delete local file " + file.getAbsolutePath());
+                                    if (remoteOffset == 0) {
+                                        uploadedFiles++;
+                                    }
+                                    uploadedBytes += file.length();
+                                }
+
+                                private void store(FTPDataTransferListener listener) throws FTPIllegalReplyException, FTPException,
+                                                                                            FTPDataTransferException, FTPAbortedException, IOException
+                                {
+                                    if (hedging.isPresent()) {
+                                        // null if a hedge to another host won, so the next file reconnects
+                                        client = hedging.get().upload(client, file, filePath, listener);
+                                    }
+                                    else {
+                                        try (InputStream in = openSpool(file, client)) {
+                                            client.upload(filePath, in, 0L, 0L, listener);
+                                        }
+                                    }
+                                }
+
+                                private void changeOrCreateDirectory(String directory) throws FTPIllegalReplyException, IOException
+                                {
+                                    try {
+                                        // the path_prefix directory of a new shard directory may not exist either
+                                        changeOrCreateDirectories(client, directory, separator, directories, shards.isEnabled());
+                                    }
+                                    catch (FTPException e) {
+                                        // Create directory operation failed
+                                        throw new OperationDeniedException(e);
+                                    }
+                                }
+
+                                private long getRemoteSize(String filePath) throws FTPIllegalReplyException, FTPException, IOException
+                                {
+                                    try {
+                                        return client.fileSize(filePath);
+                                    }
+                                    catch (FTPException ex) {
+                                        if (remoteOffset == 0 && ex.getCode() == 550) {
+                                            // the first attempt failed before the file was created
+                                            return 0;
+                                        }
+                                        throw ex;
                                     }
-                                    log.info("Deleted local temporary file \"{}\"", file.getAbsolutePath());
-                                    return null;
                                 }
 
                                 @Override
                                 public boolean isRetryableException(Exception exception)
                                 {
-                                    return true;
+                                    if (breaker.isPresent() && breaker.get().isOpen()) {
+                                        return false;
+                                    }
+                                    switch (FtpRetryPolicy.classify(exception)) {
+                                        case PERMANENT:
+                                            return false;
+                                        case OVERLOADED:
+                                            return true;
+                                        default:
+                                            return !FtpRetryPolicy.isRetriedAlready(exception);
+                                    }
                                 }
 
                                 @Override
                                 public void onRetry(Exception exception, int retryCount, int retryLimit, int retryWait)
                                         throws RetryGiveupException
                                 {
-                                    if (exception instanceof ConfigException) {
-                                        throw new RetryGiveupException(exception);
-                                    }
-                                    else if (exception instanceof OperationDeniedException) {
-                                        throw new ConfigException(exception);
-                                    }
                                     String message = String.format("FTP put request failed. Retrying %d/%d after %d seconds. Message: %s",
                                             retryCount, retryLimit, retryWait / 1000, exception.getMessage());
                                     if (retryCount % 3 == 0) {
@@ -316,7 +1560,11 @@ public class FtpFileOutputPlugin implements FileOutputPlugin
                 }
                 catch (RetryGiveupException ex) {
                     final Throwable cause = ex.getCause();
-                    if (cause instanceof RuntimeException) {
+                    if (cause instanceof OperationDeniedException
+                            || (cause instanceof FTPException && FtpRetryPolicy.classify(cause) == FtpRetryPolicy.Failure.PERMANENT)) {
+                        throw new ConfigException(cause);
+                    }
+                    else if (cause instanceof RuntimeException) {
                         throw (RuntimeException) cause;
                     }
                     else if (cause instanceof Error) {
@@ -327,36 +1575,10 @@ public class FtpFileOutputPlugin implements FileOutputPlugin
                 catch (InterruptedException ex) {
                     throw new RuntimeException(ex);
                 }
+                finally {
+                    metrics.dequeue(length);
+                }
             }
-            return null;
-        }
-
-        @Override
-        public void close()
-        {
-            closeFile();
-        }
-
-        @Override
-        public void abort() {}
-
-        @Override
-        public TaskReport commit()
-        {
-            return CONFIG_MAPPER_FACTORY.newTaskReport();
-        }
-
-        private String getRemoteDirectory(String filePath, String separator)
-        {
-            Path path = Paths.get(filePath);
-            if (path.getParent() == null) {
-                return separator;
-            }
-            String parent = path.getParent().toString();
-            if (!parent.startsWith(separator)) {
-                parent = separator + parent;
-            }
-            return parent;
         }
 
         public class OperationDeniedException extends RuntimeException implements UserDataException
@@ -377,38 +1599,83 @@ public class FtpFileOutputPlugin implements FileOutputPlugin
         }
     }
 
+    /**
+     * Changes to {@code directory}, or creates it if it doesn't exist. With {@code parents}, missing parents are
+     * created first and added to {@code directories}. Throws FTPException only if the server denied MKD with 550.
+     */
+    static void changeOrCreateDirectories(FTPClient client, String directory, String separator,
+            RemoteDirectoryCache directories, boolean parents) throws FTPIllegalReplyException, FTPException, IOException
+    {
+        if (directories.contains(directory)) {
+            return;
+        }
+        try {
+            client.changeDirectory(directory);
+        }
+        catch (FTPException e) {
+            final String parent = getRemoteDirectory(directory, separator);
+            if (parents && !parent.equals(directory)) {
+                changeOrCreateDirectories(client, parent, separator, directories, true);
+                directories.add(parent);
+            }
+            try {
+                client.createDirectory(directory);
+            }
+            catch (FTPException e1) {
+                if (e1.getCode() == 550) {
+                    throw e1;
+                }
+            }
+        }
+    }
+
+    static String getRemoteDirectory(String filePath, String separator)
+    {
+        Path path = Paths.get(filePath);
+        if (path.getParent() == null) {
+            return separator;
+        }
+        String parent = path.getParent().toString();
+        if (!parent.startsWith(separator)) {
+            parent = separator + parent;
+        }
+        return parent;
+    }
+
     private static FTPClient newFTPClient(Logger log, PluginTask task)
     {
         FTPClient client = new FTPClient();
-        Integer defaultPort = FTP_DEFULAT_PORT;
+        final ProtocolFlightRecorder recorder = task.getProtocolTraceSize() > 0 ? new ProtocolFlightRecorder(task.getProtocolTraceSize()) : null;
         try {
             if (task.getSsl()) {
                 client.setSSLSocketFactory(SSLPlugins.newSSLSocketFactory(task.getSSLConfig(), task.getHost()));
                 if (task.getSslExplicit()) {
                     client.setSecurity(FTPClient.SECURITY_FTPES);
-                    defaultPort = FTPES_DEFAULT_PORT;
                     log.info("Using FTPES(FTPS/explicit) mode");
                 }
                 else {
                     client.setSecurity(FTPClient.SECURITY_FTPS);
-                    defaultPort = FTPS_DEFAULT_PORT;
                     log.info("Using FTPS(FTPS/implicit) mode");
                 }
             }
 
             if (!task.getPort().isPresent()) {
-                task.setPort(Optional.of(defaultPort));
+                task.setPort(Optional.of(getEffectivePort(task)));
             }
 
             client.addCommunicationListener(new LoggingCommunicationListner(log));
+            if (recorder != null) {
+                client.addCommunicationListener(recorder);
+            }
 
-            // TODO configurable timeout parameters
-            client.setAutoNoopTimeout(3000);
-
-            FTPConnector con = client.getConnector();
-            con.setConnectionTimeout(30);
-            con.setReadTimeout(60);
-            con.setCloseTimeout(60);
+            final TunedConnector con = new TunedConnector(task.getTcpNoDelay(), task.getTcpKeepAlive(), task.getIpTrafficClass());
+            con.setConnectionTimeout(task.getConnectionTimeout());
+            con.setReadTimeout(task.getReadTimeout());
+            con.setCloseTimeout(task.getCloseTimeout());
+            if (task.getSocketSendBufferSize().isPresent() && !"auto".equals(task.getSocketSendBufferSize().get())) {
+                con.setSendBufferSize(Integer.parseInt(task.getSocketSendBufferSize().get()));
+            }
+            client.setConnector(con);
 
             // for commons-net client
             //client.setControlKeepAliveTimeout
@@ -419,15 +1686,37 @@ public class FtpFileOutputPlugin implements FileOutputPlugin
 
             client = connect(client, task);
 
-            if (task.getUser().isPresent()) {
-                log.info("Logging in with user {}", task.getUser().get());
-                client.login(task.getUser().get(), task.getPassword().orElse(""));
+            login(client, task);
+
+            if (task.getSocketSendBufferSize().isPresent() && "auto".equals(task.getSocketSendBufferSize().get())) {
+                final Optional<ServerProfile> profile = getServerProfile(task);
+                final long rttNanos;
+                if (profile.isPresent()) {
+                    rttNanos = profile.get().getRttNanos();
+                }
+                else {
+                    // one round trip on the control connection approximates the RTT of data connections
+                    final long start = System.nanoTime();
+                    client.noop();
+                    rttNanos = System.nanoTime() - start;
+                }
+                con.setSendBufferSize(TunedConnector.bandwidthDelayProduct(task.getSocketBandwidthMbps() * 1000L * 1000L / 8, rttNanos));
+                log.info("Measured RTT {} ms. Using {} bytes of socket send buffer", rttNanos / 1_000_000, con.getSendBufferSize());
             }
 
             log.info("Using passive mode");
             client.setPassive(task.getPassiveMode());
 
-            if (task.getAsciiMode()) {
+            if (task.getKeepaliveInterval() > 0) {
+                KeepAliveScheduler.of(task.getHost(), getEffectivePort(task), task.getKeepaliveInterval()).register(client);
+            }
+
+            if (task.getAsciiMode() && task.getAsciiModeClientConversion()) {
+                // line endings are converted while spooling, see CrlfOutputStream
+                log.info("Using binary mode with client side CRLF conversion");
+                client.setType(FTPClient.TYPE_BINARY);
+            }
+            else if (task.getAsciiMode()) {
                 log.info("Using ASCII mode");
                 client.setType(FTPClient.TYPE_TEXTUAL);
             }
@@ -436,7 +1725,11 @@ public class FtpFileOutputPlugin implements FileOutputPlugin
                 client.setType(FTPClient.TYPE_BINARY);
             }
 
-            if (client.isCompressionSupported()) {
+            if (client.isCompressionSupported() && SPOOL_DEFLATE.equals(task.getSpoolCompression())) {
+                // left in MODE S for other transfers. see Destination.openSpool
+                log.info("Using MODE Z compression with the deflated spool");
+            }
+            else if (client.isCompressionSupported()) {
                 log.info("Using MODE Z compression");
                 client.setCompressionEnabled(true);
             }
@@ -458,12 +1751,16 @@ public class FtpFileOutputPlugin implements FileOutputPlugin
             throw new RuntimeException(ex);
         }
         finally {
+            if (client != null && recorder != null) {
+                recorder.dump(log, "Failed to set up FTP connection to " + task.getHost());
+            }
             disconnectClient(client);
         }
     }
 
     private static FTPClient connect(final FTPClient client, final PluginTask task) throws InterruptedIOException
     {
+        final Optional<CircuitBreaker> breaker = getCircuitBreaker(task);
         try {
             return RetryExecutor.builder()
                     .withRetryLimit(task.getMaxConnectionRetry())
@@ -474,6 +1771,9 @@ public class FtpFileOutputPlugin implements FileOutputPlugin
                         @Override
                         public FTPClient call()
                         {
+                            if (breaker.isPresent()) {
+                                breaker.get().checkClosed();
+                            }
                             try {
                                 if (task.getPort().isPresent()) {
                                     client.connect(task.getHost(), task.getPort().get());
@@ -485,20 +1785,29 @@ public class FtpFileOutputPlugin implements FileOutputPlugin
                                 }
                             }
                             catch (FTPIllegalReplyException | FTPException | IOException ex) {
+                                if (breaker.isPresent() && FtpRetryPolicy.classify(ex) != FtpRetryPolicy.Failure.PERMANENT) {
+                                    breaker.get().recordFailure();
+                                }
                                 throw new RuntimeException(ex);
                             }
+                            if (breaker.isPresent()) {
+                                breaker.get().recordSuccess();
+                            }
                             return client;
                         }
 
                         @Override
                         public boolean isRetryableException(Exception exception)
                         {
-                            if (exception.getCause() != null) {
-                                if (exception.getCause() instanceof ConnectException && exception.getMessage().contains("Connection refused")) {
-                                    return false;
-                                }
+                            if (breaker.isPresent() && breaker.get().isOpen()) {
+                                return false;
                             }
-                            return true;
+                            final FtpRetryPolicy.Failure failure = FtpRetryPolicy.classify(exception);
+                            if (failure == FtpRetryPolicy.Failure.OVERLOADED && task.getMaxConcurrentUploads().isPresent()) {
+                                // give the slot back to the upload scheduler instead of retrying while holding it
+                                return false;
+                            }
+                            return failure != FtpRetryPolicy.Failure.PERMANENT;
                         }
 
                         @Override
@@ -528,6 +1837,66 @@ public class FtpFileOutputPlugin implements FileOutputPlugin
         }
     }
 
+    /**
+     * Logs in, and switches to a clear data channel with ssl_data_channel: clear.
+     *
+     * ftp4j sets dataChannelEncrypted in connect() and again after login(), so the switch must run after login()
+     * on every connection, including reconnects.
+     */
+    static void login(FTPClient client, PluginTask task)
+            throws IOException, FTPIllegalReplyException, FTPException
+    {
+        if (task.getUser().isPresent()) {
+            log.info("Logging in with user {}", task.getUser().get());
+            client.login(task.getUser().get(), task.getPassword().orElse(""));
+        }
+
+        if (task.getSsl() && SSL_DATA_CLEAR.equals(task.getSslDataChannel())) {
+            // credentials went over TLS already. ftp4j sent PROT P on login and can't be told otherwise
+            final FTPReply reply = client.sendCustomCommand("PROT C");
+            if (!reply.isSuccessCode()) {
+                throw new FTPException(reply);
+            }
+            disableDataChannelEncryption(client);
+            log.info("Using clear data channel (PROT C)");
+        }
+    }
+
+    static void disableDataChannelEncryption(FTPClient client)
+    {
+        try {
+            getDataChannelEncryptedField().setBoolean(client, false);
+        }
+        catch (IllegalAccessException ex) {
+            throw new ConfigException("This ftp4j doesn't support ssl_data_channel: clear", ex);
+        }
+    }
+
+    private static Field getDataChannelEncryptedField()
+    {
+        try {
+            final Field field = FTPClient.class.getDeclaredField("dataChannelEncrypted");
+            field.setAccessible(true);
+            return field;
+        }
+        catch (NoSuchFieldException | SecurityException ex) {
+            throw new ConfigException("This ftp4j doesn't support ssl_data_channel: clear", ex);
+        }
+    }
+
+    private static Optional<HostSessionLimiter> newSessionLimiter(PluginTask task, int port)
+    {
+        return task.getMaxHostSessions().map(max -> new HostSessionLimiter(
+                Paths.get(task.getSessionLockDir().orElse(System.getProperty("java.io.tmpdir") + File.separator + "embulk-output-ftp-locks")),
+                task.getHost(), port, max, task.getMaxHostBandwidthMbps().map(mbps -> mbps * 1000L * 1000L / 8)));
+    }
+
+    private static Optional<CircuitBreaker> getCircuitBreaker(PluginTask task)
+    {
+        return task.getCircuitBreakerThreshold().map(threshold -> CircuitBreaker.of(
+                task.getHost(), getEffectivePort(task), threshold, task.getCircuitBreakerTimeout()));
+    }
+
     static void disconnectClient(FTPClient client)
     {
         if (client != null && client.isConnected()) {
@@ -551,7 +1920,7 @@ public class FtpFileOutputPlugin implements FileOutputPlugin
 
         public void received(String statement)
         {
-            log.debug("< " + statement);
+            log.debug("< {}", statement);
         }
 
         public void sent(String statement)
@@ -564,32 +1933,50 @@ public class FtpFileOutputPlugin implements FileOutputPlugin
         }
     }
 
+    private static class NullOutputStream extends OutputStream
+    {
+        @Override
+        public void write(int b)
+        {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+        }
+    }
+
     private static class LoggingTransferListener implements FTPDataTransferListener
     {
         private final String localPath;
         private final String remotePath;
         private final Logger log;
         private final long transferNoticeBytes;
+        private final TransferMetrics.Progress progress;
 
         private long totalTransfer;
         private long nextTransferNotice;
 
-        public LoggingTransferListener(String localPath, String remotePath, Logger log, long transferNoticeBytes)
+        public LoggingTransferListener(String localPath, String remotePath, Logger log, long transferNoticeBytes,
+                                       TransferMetrics.Progress progress)
         {
             this.localPath = localPath;
             this.remotePath = remotePath;
             this.log = log;
             this.transferNoticeBytes = transferNoticeBytes;
             this.nextTransferNotice = transferNoticeBytes;
+            this.progress = progress;
         }
 
         public void started()
         {
+            progress.started();
             log.info("Transfer started. local path:\"{}\" remote path:\"{}\"", localPath, remotePath);
         }
 
         public void transferred(int length)
         {
+            progress.transferred(length);
             totalTransfer += length;
             if (totalTransfer > nextTransferNotice) {
                 log.info("Transferred {} bytes", totalTransfer);
@@ -599,16 +1986,19 @@ public class FtpFileOutputPlugin implements FileOutputPlugin
 
         public void completed()
         {
+            progress.completed();
             log.info("Transfer completed. remote path:\"{}\", size:{} bytes", remotePath, totalTransfer);
         }
 
         public void aborted()
         {
+            progress.failed();
             log.info("Transfer aborted");
         }
 
         public void failed()
         {
+            progress.failed();
             log.info("Transfer failed");
         }
     }
@@ -0,0 +1,80 @@
+package org.embulk.output.ftp;
+
+import it.sauronsoftware.ftp4j.FTPException;
+import org.embulk.config.UserDataException;
+import org.embulk.util.retryhelper.RetryGiveupException;
+
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+/**
+ * Classifies failures of FTP operations into permanent and transient ones.
+ *
+ * FTP replies are classified by their first digit as defined in RFC 959:
+ * 4xx (transient negative completion) is worth retrying, 5xx (permanent negative completion)
+ * such as 530 (not logged in), 550 (permission denied), 552 (quota exceeded) or 553 (bad file name) is not.
+ * 421 (service not available) is reported separately because it usually means the server is overloaded.
+ */
+final class FtpRetryPolicy
+{
+    enum Failure
+    {
+        PERMANENT,
+        TRANSIENT,
+        OVERLOADED,
+    }
+
+    private FtpRetryPolicy()
+    {
+    }
+
+    static Failure classify(Throwable exception)
+    {
+        for (Throwable e = exception; e != null; e = e.getCause()) {
+            if (e instanceof FTPException) {
+                return classifyReplyCode(((FTPException) e).getCode());
+            }
+            if (e instanceof CircuitBreaker.CircuitOpenException
+                    || e instanceof UserDataException
+                    || e instanceof InterruptedException
+                    || e instanceof UnknownHostException) {
+                return Failure.PERMANENT;
+            }
+            if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+                return Failure.PERMANENT;
+            }
+            if (e instanceof ConnectException && e.getMessage() != null && e.getMessage().contains("Connection refused")) {
+                return Failure.PERMANENT;
+            }
+        }
+        // FTPIllegalReplyException, FTPDataTransferException, FTPAbortedException and other I/O errors
+        return Failure.TRANSIENT;
+    }
+
+    static Failure classifyReplyCode(int code)
+    {
+        if (code == 421) {
+            return Failure.OVERLOADED;
+        }
+        else if (code >= 500 && code < 600) {
+            return Failure.PERMANENT;
+        }
+        return Failure.TRANSIENT;
+    }
+
+    /**
+     * Returns true if the exception went through another retry loop already, e.g. connecting to the server
+     * inside an upload attempt. Those failures are not retried again so that retry budgets don't multiply.
+     */
+    static boolean isRetriedAlready(Throwable exception)
+    {
+        for (Throwable e = exception; e != null; e = e.getCause()) {
+            if (e instanceof RetryGiveupException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,358 @@
+package org.embulk.output.ftp;
+
+import it.sauronsoftware.ftp4j.FTPAbortedException;
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPDataTransferException;
+import it.sauronsoftware.ftp4j.FTPDataTransferListener;
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Uploads with a minimum throughput watchdog.
+ *
+ * When a whole-file upload stalls, the same file is uploaded to a temporary name over a second connection,
+ * possibly to another host. Whichever finishes first wins: the other transfer is aborted, and a winning hedge
+ * is renamed to the real name. Appends can't be hedged because two writers would interleave in one file,
+ * so a stalled append is aborted and left to the retry, which resumes it from the remote size.
+ *
+ * A hedge is only started when its server has a free slot, and it never waits for one or retries to connect.
+ * A hedge that won on another host is not kept: the caller's directory cache, metrics and slots belong to its own host.
+ */
+class HedgedUpload
+{
+    private static final String HEDGE_SUFFIX = ".hedge";
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "embulk-output-ftp-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Logger log;
+    private final long minBytesPerSecond;
+    private final int windowSeconds;
+    private final Connector hedgeConnector;
+    private final SpoolOpener spoolOpener;
+
+    interface SpoolOpener
+    {
+        InputStream open(File file, FTPClient client) throws IOException, FTPIllegalReplyException, FTPException;
+    }
+
+    interface Connector
+    {
+        /**
+         * Opens a hedge connection without waiting or retrying, or returns null if its server has no free slot.
+         */
+        Connection connect() throws Exception;
+    }
+
+    /**
+     * A hedge connection and the slots it holds on its server.
+     */
+    static class Connection
+    {
+        private final FTPClient client;
+        private final boolean sameServer;
+        private final Runnable release;
+
+        /**
+         * @param sameServer whether the connection goes to the server of the stalled upload, so that it can replace it
+         * @param release gives back the slots taken for the connection
+         */
+        Connection(FTPClient client, boolean sameServer, Runnable release)
+        {
+            this.client = client;
+            this.sameServer = sameServer;
+            this.release = release;
+        }
+
+        void discard()
+        {
+            FtpFileOutputPlugin.disconnectClient(client);
+            release.run();
+        }
+    }
+
+    HedgedUpload(Logger log, long minBytesPerSecond, int windowSeconds, Connector hedgeConnector, SpoolOpener spoolOpener)
+    {
+        this.log = log;
+        this.minBytesPerSecond = minBytesPerSecond;
+        this.windowSeconds = windowSeconds;
+        this.hedgeConnector = hedgeConnector;
+        this.spoolOpener = spoolOpener;
+    }
+
+    /**
+     * Uploads {@code file} to {@code filePath} and returns the connection to keep using: the hedge connection if
+     * a hedge to the same server won, or null if a hedge to another host won and the caller has to reconnect.
+     */
+    FTPClient upload(FTPClient client, File file, String filePath, FTPDataTransferListener listener)
+            throws FTPIllegalReplyException, FTPException, FTPDataTransferException, FTPAbortedException, IOException
+    {
+        final StallWatchdog watchdog = new StallWatchdog(minBytesPerSecond, windowSeconds, System.nanoTime());
+        final Hedge hedge = new Hedge(client, file, filePath + HEDGE_SUFFIX);
+        final ScheduledFuture<?> check = WATCHDOG.scheduleWithFixedDelay(() -> {
+            if (watchdog.isStalled(System.nanoTime()) && hedge.start()) {
+                log.warn("Upload of \"{}\" is slower than {} bytes/s for {} seconds. Starting a hedged upload",
+                        filePath, minBytesPerSecond, windowSeconds);
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+
+        try (InputStream in = spoolOpener.open(file, client)) {
+            client.upload(filePath, in, 0L, 0L, new WatchedListener(listener, watchdog));
+        }
+        catch (FTPIllegalReplyException | FTPException | FTPDataTransferException | FTPAbortedException | IOException | RuntimeException ex) {
+            check.cancel(false);
+            if (!hedge.close() || !hedge.awaitSuccess()) {
+                hedge.cancel();
+                throw ex;
+            }
+            return promote(client, hedge, filePath);
+        }
+        check.cancel(false);
+        if (!hedge.close() || hedge.decided.compareAndSet(false, true)) {
+            hedge.cancel();
+            return client;
+        }
+        // the hedge finished first and aborted this transfer too late
+        hedge.awaitSuccess();
+        return promote(client, hedge, filePath);
+    }
+
+    /**
+     * Appends {@code in} to {@code filePath}, aborting the transfer when it stalls.
+     */
+    void append(FTPClient client, String filePath, InputStream in, long streamOffset, FTPDataTransferListener listener)
+            throws FTPIllegalReplyException, FTPException, FTPDataTransferException, FTPAbortedException, IOException
+    {
+        final StallWatchdog watchdog = new StallWatchdog(minBytesPerSecond, windowSeconds, System.nanoTime());
+        final AtomicBoolean aborted = new AtomicBoolean(false);
+        final ScheduledFuture<?> check = WATCHDOG.scheduleWithFixedDelay(() -> {
+            if (watchdog.isStalled(System.nanoTime()) && aborted.compareAndSet(false, true)) {
+                log.warn("Append to \"{}\" is slower than {} bytes/s for {} seconds. Aborting it to resume",
+                        filePath, minBytesPerSecond, windowSeconds);
+                abortQuietly(client);
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        try {
+            client.append(filePath, in, streamOffset, new WatchedListener(listener, watchdog));
+        }
+        finally {
+            check.cancel(false);
+        }
+    }
+
+    private FTPClient promote(FTPClient client, Hedge hedge, String filePath)
+            throws FTPIllegalReplyException, FTPException, IOException
+    {
+        final Connection connection = hedge.connection;
+        log.info("Hedged upload of \"{}\" finished first", filePath);
+        FtpFileOutputPlugin.disconnectClient(client);
+        try {
+            try {
+                connection.client.deleteFile(filePath);
+            }
+            catch (FTPException ex) {
+                // the stalled upload may not have created it
+            }
+            connection.client.rename(hedge.path, filePath);
+        }
+        catch (FTPIllegalReplyException | FTPException | IOException | RuntimeException ex) {
+            connection.discard();
+            throw ex;
+        }
+        if (!connection.sameServer) {
+            connection.discard();
+            return null;
+        }
+        // from now on covered by the slots of the replaced connection
+        connection.release.run();
+        return connection.client;
+    }
+
+    private static void abortQuietly(FTPClient client)
+    {
+        try {
+            client.abortCurrentDataTransfer(true);
+        }
+        catch (IOException | FTPIllegalReplyException ex) {
+            // the transfer fails anyway
+        }
+    }
+
+    private class Hedge implements Runnable
+    {
+        private final FTPClient primary;
+        private final File file;
+        private final String path;
+        private final CountDownLatch done = new CountDownLatch(1);
+        // set by whichever upload finishes first
+        private final AtomicBoolean decided = new AtomicBoolean(false);
+        // null until connected. guarded by this
+        private Connection connection = null;
+        private boolean cancelled = false;
+        private volatile boolean succeeded = false;
+        private boolean started = false;
+        private boolean closed = false;
+
+        Hedge(FTPClient primary, File file, String path)
+        {
+            this.primary = primary;
+            this.file = file;
+            this.path = path;
+        }
+
+        synchronized boolean start()
+        {
+            if (started || closed) {
+                return false;
+            }
+            started = true;
+            final Thread thread = new Thread(this, "embulk-output-ftp-hedge");
+            thread.setDaemon(true);
+            thread.start();
+            return true;
+        }
+
+        /**
+         * Prevents the hedge from starting later and returns whether it was started.
+         */
+        synchronized boolean close()
+        {
+            closed = true;
+            return started;
+        }
+
+        boolean awaitSuccess() throws InterruptedIOException
+        {
+            try {
+                done.await();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            return succeeded;
+        }
+
+        /**
+         * Aborts the hedge and removes its file. A hedge still connecting is left to discard its connection by itself.
+         */
+        void cancel() throws InterruptedIOException
+        {
+            if (!close()) {
+                return;
+            }
+            final Connection c;
+            synchronized (this) {
+                cancelled = true;
+                c = connection;
+            }
+            if (c == null) {
+                return;
+            }
+            try {
+                while (!done.await(1, TimeUnit.SECONDS)) {
+                    abortQuietly(c.client);
+                }
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            try {
+                c.client.deleteFile(path);
+            }
+            catch (IOException | FTPIllegalReplyException | FTPException | IllegalStateException ex) {
+                // the partial file is left
+            }
+            c.discard();
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                final Connection c = hedgeConnector.connect();
+                if (c == null) {
+                    log.info("No free slot for a hedged upload to \"{}\"", path);
+                    return;
+                }
+                synchronized (this) {
+                    if (cancelled) {
+                        c.discard();
+                        return;
+                    }
+                    connection = c;
+                }
+                try (InputStream in = spoolOpener.open(file, c.client)) {
+                    c.client.upload(path, in, 0L, 0L, null);
+                }
+                succeeded = true;
+                if (decided.compareAndSet(false, true)) {
+                    abortQuietly(primary);
+                }
+            }
+            catch (Exception ex) {
+                synchronized (this) {
+                    if (!cancelled) {
+                        log.warn("Hedged upload to \"{}\" failed: {}", path, ex.toString());
+                    }
+                }
+            }
+            finally {
+                done.countDown();
+            }
+        }
+    }
+
+    private static class WatchedListener implements FTPDataTransferListener
+    {
+        private final FTPDataTransferListener delegate;
+        private final StallWatchdog watchdog;
+
+        WatchedListener(FTPDataTransferListener delegate, StallWatchdog watchdog)
+        {
+            this.delegate = delegate;
+            this.watchdog = watchdog;
+        }
+
+        public void started()
+        {
+            delegate.started();
+        }
+
+        public void transferred(int length)
+        {
+            watchdog.transferred(length, System.nanoTime());
+            delegate.transferred(length);
+        }
+
+        public void completed()
+        {
+            delegate.completed();
+        }
+
+        public void aborted()
+        {
+            delegate.aborted();
+        }
+
+        public void failed()
+        {
+            delegate.failed();
+        }
+    }
+}
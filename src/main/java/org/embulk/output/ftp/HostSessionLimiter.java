@@ -0,0 +1,390 @@
+package org.embulk.output.ftp;
+
+import it.sauronsoftware.ftp4j.FTPDataTransferListener;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Host-local semaphore shared by all Embulk processes on the machine, built from file locks in one directory.
+ *
+ * Each of the {@code maxSessions} slots is a lock file, held while a connection to the server is open.
+ * A second lock file per slot is held only while a file is transferred, so that bandwidth is shared among transfers
+ * and not among idle connections.
+ * Waiters line up as lock files named after their arrival time and take a slot in that order. Locks of a crashed
+ * process are released by the OS, so its slots and place in line are freed without any cleanup.
+ * Locks held by this JVM are tracked separately because closing another channel to a locked file may release the lock.
+ */
+class HostSessionLimiter
+{
+    private static final Set<Path> LOCAL_LOCKS = ConcurrentHashMap.newKeySet();
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+    private static final String PROCESS_ID = ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9]", "_");
+    private static final long MAX_POLL_MILLIS = 1000;
+    private static final long STALE_WAITER_MILLIS = 5000;
+
+    private final Path dir;
+    private final String key;
+    private final int maxSessions;
+    private final Optional<Long> maxBytesPerSecond;
+
+    HostSessionLimiter(Path dir, String host, int port, int maxSessions, Optional<Long> maxBytesPerSecond)
+    {
+        this.dir = dir;
+        this.key = host.replaceAll("[^A-Za-z0-9.-]", "_") + "_" + port;
+        this.maxSessions = maxSessions;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * Waits in line for a free slot.
+     */
+    Session acquire() throws IOException, InterruptedException
+    {
+        Files.createDirectories(dir);
+        final Path waiter = dir.resolve(String.format("%s.wait.%013d-%s-%06d",
+                key, System.currentTimeMillis(), PROCESS_ID, SEQUENCE.incrementAndGet()));
+        Optional<Session> place = tryLock(waiter);
+        try {
+            while (!place.isPresent()) {
+                // another process checks whether the new file is held. its lock is released right away
+                Thread.sleep(1);
+                place = tryLock(waiter);
+            }
+        }
+        catch (InterruptedException ex) {
+            Files.deleteIfExists(waiter);
+            throw ex;
+        }
+        try {
+            long pollMillis = 50;
+            while (true) {
+                if (isFirstInLine(waiter)) {
+                    final Optional<Session> session = tryAcquireSlot();
+                    if (session.isPresent()) {
+                        return session.get();
+                    }
+                }
+                Thread.sleep(pollMillis);
+                pollMillis = Math.min(pollMillis * 2, MAX_POLL_MILLIS);
+            }
+        }
+        finally {
+            place.get().close();
+            Files.deleteIfExists(waiter);
+        }
+    }
+
+    /**
+     * Takes a free slot only if nobody waits in line, e.g. for an extra hedge connection.
+     */
+    Optional<Session> tryAcquire() throws IOException
+    {
+        Files.createDirectories(dir);
+        // sorts after every waiter, so it is first in line only when the line is empty
+        if (!isFirstInLine(dir.resolve(key + ".wait.~"))) {
+            return Optional.empty();
+        }
+        return tryAcquireSlot();
+    }
+
+    /**
+     * Returns whether any process, including this one, waits in line for a slot,
+     * so that a holder can give up an idle connection.
+     */
+    boolean hasWaiters() throws IOException
+    {
+        Files.createDirectories(dir);
+        return !isFirstInLine(dir.resolve(key + ".wait.~"));
+    }
+
+    /**
+     * Returns the number of slots held by any process.
+     */
+    int countActiveSessions() throws IOException
+    {
+        int count = 0;
+        for (int i = 0; i < maxSessions; i++) {
+            if (isHeld(slot(i))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of transfers in flight in any process.
+     */
+    int countActiveTransfers() throws IOException
+    {
+        int count = 0;
+        for (int i = 0; i < maxSessions; i++) {
+            if (isHeld(transferOf(slot(i)))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private Path slot(int index)
+    {
+        return dir.resolve(key + ".slot" + index);
+    }
+
+    private static Path transferOf(Path slot)
+    {
+        return slot.resolveSibling(slot.getFileName() + ".transfer");
+    }
+
+    private Optional<Session> tryAcquireSlot() throws IOException
+    {
+        for (int i = 0; i < maxSessions; i++) {
+            final Optional<Session> session = tryLock(slot(i));
+            if (session.isPresent()) {
+                return session;
+            }
+        }
+        return Optional.empty();
+    }
+
+    private boolean isFirstInLine(Path waiter) throws IOException
+    {
+        final List<Path> waiters = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, key + ".wait.*")) {
+            for (Path path : stream) {
+                waiters.add(path);
+            }
+        }
+        Collections.sort(waiters);
+        for (Path path : waiters) {
+            if (path.equals(waiter)) {
+                return true;
+            }
+            if (isHeld(path)) {
+                return false;
+            }
+            try {
+                if (System.currentTimeMillis() - Files.getLastModifiedTime(path).toMillis() < STALE_WAITER_MILLIS) {
+                    // created but not locked yet
+                    return false;
+                }
+            }
+            catch (NoSuchFileException ex) {
+                continue;
+            }
+            // left by a crashed process
+            Files.deleteIfExists(path);
+        }
+        return true;
+    }
+
+    private static boolean isHeld(Path path) throws IOException
+    {
+        synchronized (LOCAL_LOCKS) {
+            if (LOCAL_LOCKS.contains(path)) {
+                return true;
+            }
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                final FileLock lock = channel.tryLock();
+                if (lock == null) {
+                    return true;
+                }
+                lock.release();
+                return false;
+            }
+            catch (NoSuchFileException ex) {
+                return false;
+            }
+            catch (OverlappingFileLockException ex) {
+                return true;
+            }
+        }
+    }
+
+    private Optional<Session> tryLock(Path path) throws IOException
+    {
+        synchronized (LOCAL_LOCKS) {
+            if (LOCAL_LOCKS.contains(path)) {
+                return Optional.empty();
+            }
+            final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            final FileLock lock;
+            try {
+                lock = channel.tryLock();
+            }
+            catch (IOException | RuntimeException ex) {
+                channel.close();
+                throw ex;
+            }
+            if (lock == null) {
+                channel.close();
+                return Optional.empty();
+            }
+            LOCAL_LOCKS.add(path);
+            return Optional.of(new Session(path, channel, lock));
+        }
+    }
+
+    class Session implements AutoCloseable
+    {
+        private final Path path;
+        private final FileChannel channel;
+        private final FileLock lock;
+        // held while a transfer of this session is in flight
+        private Session transfer = null;
+
+        private Session(Path path, FileChannel channel, FileLock lock)
+        {
+            this.path = path;
+            this.channel = channel;
+            this.lock = lock;
+        }
+
+        /**
+         * Slows down a transfer to an equal share of max bandwidth among the transfers in flight at the moment.
+         */
+        FTPDataTransferListener throttle(FTPDataTransferListener listener)
+        {
+            if (!maxBytesPerSecond.isPresent()) {
+                return listener;
+            }
+            return new ThrottlingListener(this, listener);
+        }
+
+        synchronized void startTransfer() throws IOException
+        {
+            if (transfer == null) {
+                transfer = tryLock(transferOf(path)).orElse(null);
+            }
+        }
+
+        synchronized void endTransfer() throws IOException
+        {
+            if (transfer != null) {
+                transfer.close();
+                transfer = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            endTransfer();
+            synchronized (LOCAL_LOCKS) {
+                try {
+                    lock.release();
+                    channel.close();
+                }
+                finally {
+                    LOCAL_LOCKS.remove(path);
+                }
+            }
+        }
+    }
+
+    private class ThrottlingListener implements FTPDataTransferListener
+    {
+        private final Session session;
+        private final FTPDataTransferListener delegate;
+        private long bytesPerSecond;
+        private long periodStartNanos;
+        private long periodBytes;
+
+        ThrottlingListener(Session session, FTPDataTransferListener delegate)
+        {
+            this.session = session;
+            this.delegate = delegate;
+            refresh(System.nanoTime());
+        }
+
+        private void refresh(long nowNanos)
+        {
+            int active;
+            try {
+                active = countActiveTransfers();
+            }
+            catch (IOException ex) {
+                active = maxSessions;
+            }
+            bytesPerSecond = Math.max(1, maxBytesPerSecond.get() / Math.max(1, active));
+            periodStartNanos = nowNanos;
+            periodBytes = 0;
+        }
+
+        public void started()
+        {
+            try {
+                session.startTransfer();
+            }
+            catch (IOException ex) {
+                // this transfer is not counted then
+            }
+            refresh(System.nanoTime());
+            delegate.started();
+        }
+
+        private void ended()
+        {
+            try {
+                session.endTransfer();
+            }
+            catch (IOException ex) {
+                // released when the session is closed
+            }
+        }
+
+        public void transferred(int length)
+        {
+            delegate.transferred(length);
+            periodBytes += length;
+            final long dueNanos = periodStartNanos + periodBytes * 1_000_000_000L / bytesPerSecond;
+            final long waitNanos = dueNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                try {
+                    Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            final long now = System.nanoTime();
+            if (now - periodStartNanos >= 1_000_000_000L) {
+                // other sessions may have started or finished
+                refresh(now);
+            }
+        }
+
+        public void completed()
+        {
+            ended();
+            delegate.completed();
+        }
+
+        public void aborted()
+        {
+            ended();
+            delegate.aborted();
+        }
+
+        public void failed()
+        {
+            ended();
+            delegate.failed();
+        }
+    }
+}
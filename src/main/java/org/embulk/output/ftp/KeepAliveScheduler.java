@@ -0,0 +1,181 @@
+package org.embulk.output.ftp;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPCommunicationListener;
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * JVM-wide keepalive of idle control connections to one FTP server, replacing the NOOP thread
+ * ftp4j starts per client.
+ *
+ * One thread checks all connections every second and sends NOOP only on those that sent no command for
+ * the interval, and never during a transfer, whose control connection is idle on purpose. When the server
+ * closes a connection for being idle (421), the interval is lowered to half of the idle time for that server.
+ */
+class KeepAliveScheduler
+{
+    private static final Logger log = LoggerFactory.getLogger(KeepAliveScheduler.class);
+    private static final ConcurrentHashMap<String, KeepAliveScheduler> SCHEDULERS = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService TICKER = Executors.newSingleThreadScheduledExecutor(daemon("embulk-output-ftp-keepalive"));
+    // NOOP waits for the client lock, so it doesn't run on the ticker
+    private static final ExecutorService PINGERS = Executors.newFixedThreadPool(4, daemon("embulk-output-ftp-noop"));
+    private static final long MIN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(3);
+    private static final Pattern TRANSFER_COMMAND = Pattern.compile("^(STOR|STOU|APPE|RETR|LIST|NLST|MLSD)\\b.*", Pattern.CASE_INSENSITIVE);
+    private static final Pattern FINAL_REPLY = Pattern.compile("^[2-5][0-9][0-9] .*");
+
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private volatile long intervalNanos;
+
+    KeepAliveScheduler(long intervalNanos)
+    {
+        this.intervalNanos = intervalNanos;
+    }
+
+    static KeepAliveScheduler of(String host, int port, int intervalSeconds)
+    {
+        return SCHEDULERS.computeIfAbsent(host + ":" + port, key -> {
+            final KeepAliveScheduler scheduler = new KeepAliveScheduler(TimeUnit.SECONDS.toNanos(intervalSeconds));
+            TICKER.scheduleWithFixedDelay(() -> scheduler.tick(System.nanoTime()), 1, 1, TimeUnit.SECONDS);
+            return scheduler;
+        });
+    }
+
+    private static ThreadFactory daemon(String name)
+    {
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Keeps {@code client} alive until it is disconnected.
+     */
+    Connection register(FTPClient client)
+    {
+        final Connection connection = new Connection(client, System.nanoTime());
+        client.addCommunicationListener(connection);
+        connections.add(connection);
+        return connection;
+    }
+
+    long getIntervalNanos()
+    {
+        return intervalNanos;
+    }
+
+    int countConnections()
+    {
+        return connections.size();
+    }
+
+    void tick(long nowNanos)
+    {
+        for (Connection connection : connections) {
+            if (!connection.client.isConnected()) {
+                connections.remove(connection);
+            }
+            else if (connection.isIdle(nowNanos, intervalNanos) && connection.startPing()) {
+                PINGERS.execute(connection::ping);
+            }
+        }
+    }
+
+    private synchronized void onIdleTimeout(long idleNanos)
+    {
+        final long interval = Math.max(MIN_INTERVAL_NANOS, idleNanos / 2);
+        if (interval < intervalNanos) {
+            intervalNanos = interval;
+            log.info("Server closed a connection idle for {} seconds. Sending NOOP every {} seconds",
+                    TimeUnit.NANOSECONDS.toSeconds(idleNanos), TimeUnit.NANOSECONDS.toSeconds(interval));
+        }
+    }
+
+    class Connection implements FTPCommunicationListener
+    {
+        private final FTPClient client;
+        private volatile long lastSentNanos;
+        private volatile long idleBeforeLastSentNanos = 0;
+        private volatile boolean transferring = false;
+        private volatile boolean pinging = false;
+
+        Connection(FTPClient client, long nowNanos)
+        {
+            this.client = client;
+            this.lastSentNanos = nowNanos;
+        }
+
+        boolean isIdle(long nowNanos, long intervalNanos)
+        {
+            return !transferring && nowNanos - lastSentNanos >= intervalNanos;
+        }
+
+        private synchronized boolean startPing()
+        {
+            if (pinging) {
+                return false;
+            }
+            pinging = true;
+            return true;
+        }
+
+        private void ping()
+        {
+            try {
+                // checked again because the owner may have started a transfer
+                if (!transferring) {
+                    client.noop();
+                }
+            }
+            catch (IOException | FTPIllegalReplyException | FTPException | IllegalStateException ex) {
+                // the owner finds the broken connection on its next command and reconnects
+                log.debug("NOOP failed: {}", ex.toString());
+                connections.remove(this);
+            }
+            finally {
+                pinging = false;
+            }
+        }
+
+        @Override
+        public void sent(String statement)
+        {
+            sent(statement, System.nanoTime());
+        }
+
+        void sent(String statement, long nowNanos)
+        {
+            idleBeforeLastSentNanos = nowNanos - lastSentNanos;
+            lastSentNanos = nowNanos;
+            if (TRANSFER_COMMAND.matcher(statement).matches()) {
+                transferring = true;
+            }
+        }
+
+        @Override
+        public void received(String statement)
+        {
+            if (statement.startsWith("421") && !transferring && idleBeforeLastSentNanos >= MIN_INTERVAL_NANOS * 2) {
+                // the server closed the connection before the command just sent
+                onIdleTimeout(idleBeforeLastSentNanos);
+            }
+            if (FINAL_REPLY.matcher(statement).matches()) {
+                transferring = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.embulk.output.ftp;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPCommunicationListener;
+import org.slf4j.Logger;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Keeps the last control channel lines of one connection in a fixed-size ring buffer.
+ *
+ * Recording only stores references to the strings ftp4j has built anyway, so it costs next to nothing
+ * on every run. The buffer is written to the log only when an upload fails or is slow.
+ */
+class ProtocolFlightRecorder implements FTPCommunicationListener
+{
+    private static final String MASKED_PASS = "PASS ********";
+
+    private final long[] timestamps;
+    private final String[] lines;
+    private final boolean[] sent;
+    private int next;
+    private int size;
+
+    ProtocolFlightRecorder(int capacity)
+    {
+        this.timestamps = new long[capacity];
+        this.lines = new String[capacity];
+        this.sent = new boolean[capacity];
+    }
+
+    static ProtocolFlightRecorder of(FTPClient client)
+    {
+        if (client != null) {
+            for (FTPCommunicationListener listener : client.getCommunicationListeners()) {
+                if (listener instanceof ProtocolFlightRecorder) {
+                    return (ProtocolFlightRecorder) listener;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void sent(String statement)
+    {
+        if (statement.regionMatches(true, 0, "PASS", 0, 4)) {
+            // don't record password
+            record(MASKED_PASS, true);
+        }
+        else {
+            record(statement, true);
+        }
+    }
+
+    @Override
+    public void received(String statement)
+    {
+        record(statement, false);
+    }
+
+    private synchronized void record(String line, boolean isSent)
+    {
+        timestamps[next] = System.currentTimeMillis();
+        lines[next] = line;
+        sent[next] = isSent;
+        next = (next + 1) % lines.length;
+        if (size < lines.length) {
+            size++;
+        }
+    }
+
+    synchronized void dump(Logger log, String reason)
+    {
+        if (size == 0) {
+            return;
+        }
+        final SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+        final StringBuilder sb = new StringBuilder();
+        sb.append(reason).append(". Last ").append(size).append(" lines of FTP control connection:");
+        for (int i = 0; i < size; i++) {
+            final int index = indexOf(i);
+            sb.append(System.lineSeparator())
+                    .append(format.format(new Date(timestamps[index])))
+                    .append(sent[index] ? " > " : " < ")
+                    .append(lines[index]);
+        }
+        log.warn(sb.toString());
+    }
+
+    /**
+     * Returns the recorded lines from the oldest, prefixed with "> " if sent and "< " if received.
+     */
+    synchronized List<String> getLines()
+    {
+        final List<String> recorded = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            final int index = indexOf(i);
+            recorded.add((sent[index] ? "> " : "< ") + lines[index]);
+        }
+        return recorded;
+    }
+
+    private int indexOf(int i)
+    {
+        return (next - size + i + lines.length) % lines.length;
+    }
+}
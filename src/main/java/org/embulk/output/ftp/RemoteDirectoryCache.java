@@ -0,0 +1,47 @@
+package org.embulk.output.ftp;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JVM-wide set of remote directories known to exist on one FTP server,
+ * so that CWD and MKD are sent once per directory instead of once per uploaded file.
+ */
+class RemoteDirectoryCache
+{
+    private static final ConcurrentHashMap<String, RemoteDirectoryCache> CACHES = new ConcurrentHashMap<>();
+
+    private final Set<String> directories = ConcurrentHashMap.newKeySet();
+
+    static RemoteDirectoryCache of(String host, int port, String user)
+    {
+        // different users may see different file systems (chroot)
+        return CACHES.computeIfAbsent(user + "@" + host + ":" + port, key -> new RemoteDirectoryCache());
+    }
+
+    boolean contains(String directory)
+    {
+        return directories.contains(directory);
+    }
+
+    void add(String directory)
+    {
+        directories.add(directory);
+    }
+
+    /**
+     * Forgets {@code directory} and its parents, e.g. after they were removed by someone else.
+     */
+    void invalidate(String directory, String separator)
+    {
+        String current = directory;
+        while (true) {
+            directories.remove(current);
+            final String parent = FtpFileOutputPlugin.getRemoteDirectory(current, separator);
+            if (parent.equals(current)) {
+                return;
+            }
+            current = parent;
+        }
+    }
+}
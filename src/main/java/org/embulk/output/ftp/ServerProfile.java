@@ -0,0 +1,162 @@
+package org.embulk.output.ftp;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import it.sauronsoftware.ftp4j.FTPAbortedException;
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPDataTransferException;
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
+import it.sauronsoftware.ftp4j.FTPReply;
+import org.slf4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * What the preflight in transaction() found out about one FTP server, passed to all tasks through the task source.
+ *
+ * ftp4j negotiates FEAT and UTF8 on every login by itself, so tasks use the profile to skip what this plugin
+ * would find out by trial and error: the RTT measurement of socket_send_buffer_size: auto and the CWD and MKD
+ * of the path_prefix directory.
+ */
+class ServerProfile
+{
+    private static final String PROBE_FILE_PREFIX = ".embulk-output-ftp-preflight-";
+
+    private final List<String> features;
+    private final long rttNanos;
+    private final Optional<String> directory;
+    private final Optional<Long> availableBytes;
+
+    @JsonCreator
+    ServerProfile(
+            @JsonProperty("features") List<String> features,
+            @JsonProperty("rtt_nanos") long rttNanos,
+            @JsonProperty("directory") Optional<String> directory,
+            @JsonProperty("available_bytes") Optional<Long> availableBytes)
+    {
+        this.features = features;
+        this.rttNanos = rttNanos;
+        this.directory = directory;
+        this.availableBytes = availableBytes;
+    }
+
+    /**
+     * Reads FEAT, measures the RTT, and creates {@code directory} and its missing parents. With {@code writeCheck}
+     * it also uploads and deletes a small file in it to make sure the user can write there.
+     */
+    static ServerProfile probe(Logger log, FTPClient client, String directory, String separator, boolean writeCheck,
+            RemoteDirectoryCache directories)
+            throws FTPIllegalReplyException, FTPException, FTPDataTransferException, FTPAbortedException, IOException
+    {
+        final FTPReply feat = client.sendCustomCommand("FEAT");
+        final List<String> features = feat.isSuccessCode() ? parseFeatures(feat.getMessages()) : new ArrayList<>();
+
+        final long start = System.nanoTime();
+        client.noop();
+        final long rttNanos = System.nanoTime() - start;
+
+        FtpFileOutputPlugin.changeOrCreateDirectories(client, directory, separator, directories, true);
+        if (writeCheck) {
+            uploadProbeFile(log, client, directory, separator);
+        }
+
+        Optional<Long> availableBytes = Optional.empty();
+        if (contains(features, "AVBL")) {
+            // draft-peterson-streamlined-ftp-command-extensions
+            final FTPReply avbl = client.sendCustomCommand("AVBL " + directory);
+            if (avbl.isSuccessCode() && avbl.getMessages().length > 0) {
+                try {
+                    availableBytes = Optional.of(Long.parseLong(avbl.getMessages()[0].trim()));
+                }
+                catch (NumberFormatException ex) {
+                    log.warn("Unexpected reply to AVBL: {}", avbl.getMessages()[0]);
+                }
+            }
+        }
+        return new ServerProfile(features, rttNanos, Optional.of(directory), availableBytes);
+    }
+
+    private static void uploadProbeFile(Logger log, FTPClient client, String directory, String separator)
+            throws FTPIllegalReplyException, FTPException, FTPDataTransferException, FTPAbortedException, IOException
+    {
+        // sent in MODE S whatever mode the connection is in. the connection is only used for preflight
+        client.setCompressionEnabled(false);
+        final FTPReply mode = client.sendCustomCommand("MODE S");
+        if (!mode.isSuccessCode()) {
+            throw new FTPException(mode);
+        }
+        final String probePath = (directory.endsWith(separator) ? directory : directory + separator) + PROBE_FILE_PREFIX + UUID.randomUUID();
+        client.upload(probePath, new ByteArrayInputStream("embulk".getBytes(StandardCharsets.US_ASCII)), 0L, 0L, null);
+        try {
+            client.deleteFile(probePath);
+        }
+        catch (FTPException ex) {
+            log.warn("Couldn't delete preflight file \"{}\": {}", probePath, ex.getMessage());
+        }
+    }
+
+    static List<String> parseFeatures(String[] messages)
+    {
+        // "Features:", one feature per line, "End"
+        final List<String> features = new ArrayList<>();
+        for (int i = 1; i < messages.length - 1; i++) {
+            final String feature = messages[i].trim();
+            if (!feature.isEmpty()) {
+                features.add(feature);
+            }
+        }
+        return features;
+    }
+
+    /**
+     * Returns whether FEAT listed {@code feature}, with or without parameters such as "REST STREAM" or "MLST size*;modify*;".
+     */
+    boolean supports(String feature)
+    {
+        return contains(features, feature);
+    }
+
+    private static boolean contains(List<String> features, String feature)
+    {
+        final String expected = feature.toUpperCase(Locale.ENGLISH);
+        for (String line : features) {
+            final String upper = line.toUpperCase(Locale.ENGLISH);
+            if (upper.equals(expected) || upper.startsWith(expected + " ")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @JsonProperty("features")
+    List<String> getFeatures()
+    {
+        return features;
+    }
+
+    @JsonProperty("rtt_nanos")
+    long getRttNanos()
+    {
+        return rttNanos;
+    }
+
+    @JsonProperty("directory")
+    Optional<String> getDirectory()
+    {
+        return directory;
+    }
+
+    @JsonProperty("available_bytes")
+    Optional<Long> getAvailableBytes()
+    {
+        return availableBytes;
+    }
+}
@@ -0,0 +1,69 @@
+package org.embulk.output.ftp;
+
+/**
+ * Spreads remote files over subdirectories of the path_prefix directory, so that no directory grows with every run.
+ *
+ * With {@code hash} a file goes to one of {@code count} subdirectories picked by a hash of its task and file index,
+ * named with the same number of hex digits. With {@code time} all files of a run go to the subdirectory
+ * named after the time bucket the run started in.
+ */
+class ShardLayout
+{
+    static final String NONE = "none";
+    static final String HASH = "hash";
+    static final String TIME = "time";
+
+    private final String mode;
+    private final int count;
+    private final String hexFormat;
+    private final String timeBucket;
+    private final String separator;
+
+    ShardLayout(String mode, int count, String timeBucket, String separator)
+    {
+        this.mode = mode;
+        this.count = count;
+        this.hexFormat = "%0" + Integer.toHexString(Math.max(1, count - 1)).length() + "x";
+        this.timeBucket = timeBucket;
+        this.separator = separator;
+    }
+
+    boolean isEnabled()
+    {
+        return !NONE.equals(mode);
+    }
+
+    /**
+     * Inserts the shard directory between the directory and the file name part of {@code pathPrefix}.
+     */
+    String apply(String pathPrefix, int taskIndex, int fileIndex)
+    {
+        if (!isEnabled()) {
+            return pathPrefix;
+        }
+        final int index = pathPrefix.lastIndexOf(separator);
+        final String directory = index < 0 ? "" : pathPrefix.substring(0, index + separator.length());
+        final String name = index < 0 ? pathPrefix : pathPrefix.substring(index + separator.length());
+        return directory + shardOf(taskIndex, fileIndex) + separator + name;
+    }
+
+    String shardOf(int taskIndex, int fileIndex)
+    {
+        if (TIME.equals(mode)) {
+            return timeBucket;
+        }
+        return String.format(hexFormat, Math.floorMod(hash(taskIndex, fileIndex), count));
+    }
+
+    static int hash(int taskIndex, int fileIndex)
+    {
+        // consecutive indexes would otherwise fill consecutive shards (murmur3 finalizer)
+        int h = taskIndex * 0x9e3779b1 + fileIndex;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
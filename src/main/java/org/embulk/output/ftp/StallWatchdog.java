@@ -0,0 +1,56 @@
+package org.embulk.output.ftp;
+
+/**
+ * Throughput of one transfer over a sliding window of one-second buckets.
+ *
+ * A read timeout doesn't catch a transfer that keeps trickling a few bytes at a time,
+ * so a transfer is considered stalled when its throughput over the whole window falls below the minimum.
+ */
+class StallWatchdog
+{
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final long minBytesPerSecond;
+    private final int windowSeconds;
+    private final long[] buckets;
+    private final long startNanos;
+    private long currentSecond = 0;
+
+    StallWatchdog(long minBytesPerSecond, int windowSeconds, long startNanos)
+    {
+        this.minBytesPerSecond = minBytesPerSecond;
+        this.windowSeconds = windowSeconds;
+        this.buckets = new long[windowSeconds];
+        this.startNanos = startNanos;
+    }
+
+    synchronized void transferred(long bytes, long nowNanos)
+    {
+        advance(nowNanos);
+        buckets[(int) (currentSecond % windowSeconds)] += bytes;
+    }
+
+    synchronized boolean isStalled(long nowNanos)
+    {
+        advance(nowNanos);
+        if (nowNanos - startNanos < windowSeconds * NANOS_PER_SECOND) {
+            // give slow start a full window
+            return false;
+        }
+        long sum = 0;
+        for (long bucket : buckets) {
+            sum += bucket;
+        }
+        return sum < minBytesPerSecond * windowSeconds;
+    }
+
+    private void advance(long nowNanos)
+    {
+        final long second = Math.max(0, nowNanos - startNanos) / NANOS_PER_SECOND;
+        // clear the buckets of the seconds that passed without transfers
+        for (long s = currentSecond + 1; s <= second && s <= currentSecond + windowSeconds; s++) {
+            buckets[(int) (s % windowSeconds)] = 0;
+        }
+        currentSecond = Math.max(currentSecond, second);
+    }
+}
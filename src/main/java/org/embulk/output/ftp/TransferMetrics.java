@@ -0,0 +1,401 @@
+package org.embulk.output.ftp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * JVM-wide upload statistics per FTP server, fed by the data transfer listener of every task,
+ * and rolled up per task by {@link TaskRollup}.
+ *
+ * {@link Progress#transferred(int)} is called for every chunk written to the data connection,
+ * so it only updates counters and never allocates. Rates are computed by a shared sampler thread
+ * which also writes the periodic progress log when {@code progress_log_interval} is set.
+ */
+class TransferMetrics implements TransferMetricsMXBean
+{
+    private static final Logger log = LoggerFactory.getLogger(TransferMetrics.class);
+    private static final ConcurrentHashMap<String, TransferMetrics> REGISTRY = new ConcurrentHashMap<>();
+    // element i counts transfers shorter than 2^i ms, up to about 2.3 hours
+    static final int HISTOGRAM_BUCKETS = 24;
+    private static final long SAMPLE_INTERVAL_MILLIS = 1000;
+
+    private static ScheduledExecutorService sampler = null;
+    private static long logIntervalMillis = 0;
+    private static long lastLogMillis = 0;
+
+    private final String key;
+    private final LongAdder bytesTransferred = new LongAdder();
+    private final LongAdder filesCompleted = new LongAdder();
+    private final LongAdder filesFailed = new LongAdder();
+    private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    private final Set<Progress> active = ConcurrentHashMap.newKeySet();
+    // spooled files waiting for or in upload, including the bytes of active transfers
+    private final LongAdder queuedBytes = new LongAdder();
+    private final LongAdder queuedFiles = new LongAdder();
+    private boolean mbeanRegistered = false;
+
+    // updated by the sampler thread only
+    private volatile double bytesPerSecond;
+    private long lastSampleBytes;
+    private long lastSampleNanos = System.nanoTime();
+    private long lastLoggedBytes;
+
+    TransferMetrics(String key)
+    {
+        this.key = key;
+    }
+
+    static TransferMetrics of(String host, int port)
+    {
+        return REGISTRY.computeIfAbsent(host + ":" + port, TransferMetrics::new);
+    }
+
+    Progress newProgress(TaskRollup task, String remotePath, long expectedBytes)
+    {
+        return new Progress(task, remotePath, expectedBytes);
+    }
+
+    /**
+     * Counts a spooled file towards the remaining bytes until {@link #dequeue(long)}, including the time
+     * it waits for a connection and retries.
+     */
+    void enqueue(long bytes)
+    {
+        queuedBytes.add(bytes);
+        queuedFiles.increment();
+    }
+
+    void dequeue(long bytes)
+    {
+        queuedBytes.add(-bytes);
+        queuedFiles.decrement();
+    }
+
+    synchronized void registerMBean()
+    {
+        if (mbeanRegistered) {
+            return;
+        }
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName("org.embulk.output.ftp:type=TransferMetrics,host=" + ObjectName.quote(key));
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+            mbeanRegistered = true;
+        }
+        catch (JMException ex) {
+            log.warn("Failed to register JMX MBean for FTP server {}", key, ex);
+        }
+    }
+
+    /**
+     * Starts the shared sampler thread. With a positive {@code logIntervalSeconds},
+     * it also logs a progress summary of every server at that interval.
+     */
+    static synchronized void startSampler(int logIntervalSeconds)
+    {
+        if (logIntervalSeconds > 0 && (logIntervalMillis == 0 || logIntervalSeconds * 1000L < logIntervalMillis)) {
+            logIntervalMillis = logIntervalSeconds * 1000L;
+        }
+        if (sampler == null) {
+            sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "embulk-output-ftp-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sampler.scheduleAtFixedRate(TransferMetrics::sampleAll, SAMPLE_INTERVAL_MILLIS, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void sampleAll()
+    {
+        try {
+            final long nowMillis = System.currentTimeMillis();
+            final boolean logNow;
+            synchronized (TransferMetrics.class) {
+                logNow = logIntervalMillis > 0 && nowMillis - lastLogMillis >= logIntervalMillis;
+                if (logNow) {
+                    lastLogMillis = nowMillis;
+                }
+            }
+            for (TransferMetrics metrics : REGISTRY.values()) {
+                metrics.sample(System.nanoTime());
+                if (logNow) {
+                    metrics.logSummary();
+                }
+            }
+        }
+        catch (RuntimeException ex) {
+            // never let the scheduled task die
+            log.warn("Failed to sample FTP transfer metrics", ex);
+        }
+    }
+
+    private void sample(long nowNanos)
+    {
+        final double seconds = (nowNanos - lastSampleNanos) / 1e9;
+        if (seconds <= 0) {
+            return;
+        }
+        final long bytes = bytesTransferred.sum();
+        bytesPerSecond = (bytes - lastSampleBytes) / seconds;
+        lastSampleBytes = bytes;
+        lastSampleNanos = nowNanos;
+        for (Progress progress : active) {
+            progress.sample(seconds);
+        }
+    }
+
+    private void logSummary()
+    {
+        final long bytes = bytesTransferred.sum();
+        if (active.isEmpty() && bytes == lastLoggedBytes) {
+            return;
+        }
+        lastLoggedBytes = bytes;
+        final long remaining = getRemainingBytes();
+        final double rate = bytesPerSecond;
+        final String eta = rate > 0 ? formatSeconds((long) (remaining / rate)) : "unknown";
+        log.info("Upload progress to {}: {} MB/s, {} active transfers, {} files queued, {} files completed, {} failed, {} MB transferred, {} MB remaining (ETA {}), slowest: {}",
+                key, String.format("%.2f", rate / (1024 * 1024)), active.size(), getQueuedFiles(), filesCompleted.sum(), filesFailed.sum(),
+                bytes / (1024 * 1024), remaining / (1024 * 1024), eta, getSlowestTransfer());
+    }
+
+    private static String formatSeconds(long seconds)
+    {
+        return String.format("%02d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+
+    @Override
+    public long getBytesTransferred()
+    {
+        return bytesTransferred.sum();
+    }
+
+    @Override
+    public long getFilesCompleted()
+    {
+        return filesCompleted.sum();
+    }
+
+    @Override
+    public long getFilesFailed()
+    {
+        return filesFailed.sum();
+    }
+
+    @Override
+    public int getActiveTransfers()
+    {
+        return active.size();
+    }
+
+    @Override
+    public double getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public long getQueuedFiles()
+    {
+        return queuedFiles.sum();
+    }
+
+    @Override
+    public long getRemainingBytes()
+    {
+        long transferring = 0;
+        for (Progress progress : active) {
+            transferring += Math.min(progress.expectedBytes, progress.bytes.get());
+        }
+        return Math.max(0, queuedBytes.sum() - transferring);
+    }
+
+    @Override
+    public long[] getTransferMillisHistogram()
+    {
+        return toArray(histogram);
+    }
+
+    private static long[] toArray(AtomicLongArray histogram)
+    {
+        final long[] counts = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    static int bucketOf(long millis)
+    {
+        return Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+    }
+
+    @Override
+    public String getSlowestTransfer()
+    {
+        Progress slowest = null;
+        for (Progress progress : active) {
+            if (slowest == null || progress.bytesPerSecond < slowest.bytesPerSecond) {
+                slowest = progress;
+            }
+        }
+        if (slowest == null) {
+            return "none";
+        }
+        return String.format("task %d \"%s\" %.2f KB/s", slowest.task.taskIndex, slowest.remotePath, slowest.bytesPerSecond / 1024);
+    }
+
+    private void record(Progress progress, boolean succeeded)
+    {
+        if (!active.remove(progress)) {
+            return;
+        }
+        if (succeeded) {
+            filesCompleted.increment();
+            final long millis = (System.nanoTime() - progress.startNanos) / 1_000_000L;
+            histogram.incrementAndGet(bucketOf(millis));
+            progress.task.recordCompleted(millis);
+        }
+        else {
+            filesFailed.increment();
+            progress.task.filesFailed.increment();
+        }
+    }
+
+    /**
+     * Upload statistics of one task across all its destinations, put in its task report.
+     */
+    static class TaskRollup
+    {
+        private final int taskIndex;
+        private final LongAdder bytesTransferred = new LongAdder();
+        private final LongAdder filesCompleted = new LongAdder();
+        private final LongAdder filesFailed = new LongAdder();
+        private final LongAdder transferMillis = new LongAdder();
+        private final AtomicLong maxTransferMillis = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+        TaskRollup(int taskIndex)
+        {
+            this.taskIndex = taskIndex;
+        }
+
+        private void recordCompleted(long millis)
+        {
+            filesCompleted.increment();
+            transferMillis.add(millis);
+            maxTransferMillis.accumulateAndGet(millis, Math::max);
+            histogram.incrementAndGet(bucketOf(millis));
+        }
+
+        long getBytesTransferred()
+        {
+            return bytesTransferred.sum();
+        }
+
+        long getFilesCompleted()
+        {
+            return filesCompleted.sum();
+        }
+
+        long getFilesFailed()
+        {
+            return filesFailed.sum();
+        }
+
+        long[] getTransferMillisHistogram()
+        {
+            return toArray(histogram);
+        }
+
+        Map<String, Object> toReport()
+        {
+            final Map<String, Object> report = new LinkedHashMap<>();
+            report.put("bytes_transferred", getBytesTransferred());
+            report.put("files_completed", getFilesCompleted());
+            report.put("files_failed", getFilesFailed());
+            report.put("transfer_millis", transferMillis.sum());
+            report.put("max_transfer_millis", maxTransferMillis.get());
+            final List<Long> counts = new ArrayList<>();
+            for (long count : getTransferMillisHistogram()) {
+                counts.add(count);
+            }
+            report.put("transfer_millis_histogram", counts);
+            return report;
+        }
+    }
+
+    /**
+     * Progress of one file transfer of one task.
+     */
+    class Progress
+    {
+        private final TaskRollup task;
+        private final String remotePath;
+        private final long expectedBytes;
+        private final AtomicLong bytes = new AtomicLong();
+        private long startNanos;
+
+        // updated by the sampler thread only
+        private volatile double bytesPerSecond;
+        private long lastSampleBytes;
+
+        private Progress(TaskRollup task, String remotePath, long expectedBytes)
+        {
+            this.task = task;
+            this.remotePath = remotePath;
+            this.expectedBytes = expectedBytes;
+        }
+
+        void started()
+        {
+            startNanos = System.nanoTime();
+            active.add(this);
+        }
+
+        void transferred(int length)
+        {
+            bytes.addAndGet(length);
+            bytesTransferred.add(length);
+            task.bytesTransferred.add(length);
+        }
+
+        void completed()
+        {
+            record(this, true);
+        }
+
+        void failed()
+        {
+            record(this, false);
+        }
+
+        private void sample(double seconds)
+        {
+            final long current = bytes.get();
+            bytesPerSecond = (current - lastSampleBytes) / seconds;
+            lastSampleBytes = current;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.embulk.output.ftp;
+
+/**
+ * JMX view of {@link TransferMetrics}, registered as
+ * {@code org.embulk.output.ftp:type=TransferMetrics,host=<host:port>} when {@code metrics_jmx} is enabled.
+ */
+public interface TransferMetricsMXBean
+{
+    long getBytesTransferred();
+
+    long getFilesCompleted();
+
+    long getFilesFailed();
+
+    int getActiveTransfers();
+
+    double getBytesPerSecond();
+
+    /**
+     * Number of spooled files waiting for a connection or being uploaded.
+     */
+    long getQueuedFiles();
+
+    /**
+     * Bytes of spooled files not uploaded yet, including those waiting for a connection.
+     */
+    long getRemainingBytes();
+
+    /**
+     * Number of completed file transfers by duration. Element {@code i} counts transfers that took
+     * less than {@code 2^i} milliseconds, and the last element counts all slower ones.
+     */
+    long[] getTransferMillisHistogram();
+
+    String getSlowestTransfer();
+}
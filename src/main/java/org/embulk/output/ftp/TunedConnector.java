@@ -0,0 +1,93 @@
+package org.embulk.output.ftp;
+
+import it.sauronsoftware.ftp4j.connectors.DirectConnector;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Optional;
+
+/**
+ * {@link DirectConnector} that exposes socket options of the data connection.
+ *
+ * Socket buffer sizes are set before connecting so that the TCP window scale is negotiated for them.
+ * ftp4j's own connector always uses 512 KB buffers, which caps a single stream at about
+ * 512 KB / RTT, e.g. 52 Mbit/s on an 80 ms path.
+ */
+class TunedConnector extends DirectConnector
+{
+    static final int DEFAULT_BUFFER_SIZE = 512 * 1024;
+    static final int MIN_BUFFER_SIZE = 64 * 1024;
+    static final int MAX_BUFFER_SIZE = 64 * 1024 * 1024;
+
+    private final boolean tcpNoDelay;
+    private final boolean keepAlive;
+    private final Optional<Integer> trafficClass;
+    private volatile int sendBufferSize = DEFAULT_BUFFER_SIZE;
+
+    TunedConnector(boolean tcpNoDelay, boolean keepAlive, Optional<Integer> trafficClass)
+    {
+        this.tcpNoDelay = tcpNoDelay;
+        this.keepAlive = keepAlive;
+        this.trafficClass = trafficClass;
+    }
+
+    void setSendBufferSize(int sendBufferSize)
+    {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    int getSendBufferSize()
+    {
+        return sendBufferSize;
+    }
+
+    /**
+     * Returns the bandwidth-delay product clamped to sane socket buffer sizes.
+     */
+    static int bandwidthDelayProduct(long bytesPerSecond, long rttNanos)
+    {
+        // in double. bytes per second times nanoseconds overflows long, e.g. for 10 GB/s and an RTT of 1 s
+        final double bdp = (double) bytesPerSecond * rttNanos / 1_000_000_000L;
+        return (int) Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, bdp));
+    }
+
+    @Override
+    public Socket connectForCommunicationChannel(String host, int port) throws IOException
+    {
+        final Socket socket = super.connectForCommunicationChannel(host, port);
+        socket.setTcpNoDelay(tcpNoDelay);
+        if (trafficClass.isPresent()) {
+            socket.setTrafficClass(trafficClass.get());
+        }
+        return socket;
+    }
+
+    @Override
+    public Socket connectForDataTransferChannel(String host, int port) throws IOException
+    {
+        final Socket socket = new Socket();
+        try {
+            socket.setSoTimeout(readTimeout * 1000);
+            socket.setSoLinger(true, closeTimeout);
+            socket.setSendBufferSize(sendBufferSize);
+            socket.setReceiveBufferSize(DEFAULT_BUFFER_SIZE);
+            socket.setTcpNoDelay(tcpNoDelay);
+            socket.setKeepAlive(keepAlive);
+            if (trafficClass.isPresent()) {
+                socket.setTrafficClass(trafficClass.get());
+            }
+            socket.connect(new InetSocketAddress(host, port), connectionTimeout * 1000);
+            return socket;
+        }
+        catch (IOException ex) {
+            try {
+                socket.close();
+            }
+            catch (IOException ignored) {
+                // do nothing
+            }
+            throw ex;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.embulk.output.ftp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * JVM-wide admission control for connections to one FTP server.
+ *
+ * A task holds a slot while its connection is open, including while it spools the next file, so the
+ * number of slots held is the number of control sessions. Tasks are admitted in FIFO order while that
+ * number is below the current limit. The limit starts at {@code max_concurrent_uploads}, is lowered when
+ * the server answers 421 (service not available, typically "too many connections"), and is raised again
+ * one step at a time after a full round of successful uploads.
+ */
+class UploadScheduler
+{
+    private static final Logger log = LoggerFactory.getLogger(UploadScheduler.class);
+    private static final ConcurrentHashMap<String, UploadScheduler> SCHEDULERS = new ConcurrentHashMap<>();
+
+    private final String key;
+    private final int maxLimit;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final ArrayDeque<Object> queue = new ArrayDeque<>();
+
+    private int limit;
+    private int active;
+    private int successesSinceChange;
+
+    UploadScheduler(String key, int maxLimit)
+    {
+        this.key = key;
+        this.maxLimit = maxLimit;
+        this.limit = maxLimit;
+    }
+
+    static UploadScheduler of(String host, int port, int maxConcurrentUploads)
+    {
+        return SCHEDULERS.computeIfAbsent(host + ":" + port, key -> new UploadScheduler(key, maxConcurrentUploads));
+    }
+
+    void acquire() throws InterruptedException
+    {
+        final Object ticket = new Object();
+        lock.lock();
+        try {
+            queue.addLast(ticket);
+            try {
+                while (queue.peekFirst() != ticket || active >= limit) {
+                    changed.await();
+                }
+            }
+            catch (InterruptedException ex) {
+                queue.remove(ticket);
+                changed.signalAll();
+                throw ex;
+            }
+            queue.removeFirst();
+            active++;
+            // the next waiter may fit into the limit as well
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a slot only if one is free and nobody waits for it, e.g. for an extra hedge connection.
+     */
+    boolean tryAcquire()
+    {
+        lock.lock();
+        try {
+            if (!queue.isEmpty() || active >= limit) {
+                return false;
+            }
+            active++;
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives the slot back once the connection is closed.
+     */
+    void release()
+    {
+        lock.lock();
+        try {
+            active--;
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    void recordSuccess()
+    {
+        lock.lock();
+        try {
+            if (limit < maxLimit && ++successesSinceChange >= limit) {
+                limit++;
+                successesSinceChange = 0;
+                log.info("Raised concurrent upload limit for {} to {}", key, limit);
+                changed.signalAll();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if a task waits for a slot, so that holders close their idle connections.
+     */
+    boolean hasWaiters()
+    {
+        lock.lock();
+        try {
+            return !queue.isEmpty();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by a task that holds a slot and got 421 from the server.
+     * The server refused a session while {@code active} connections (including the caller's) were open,
+     * so at most {@code active - 1} are accepted right now.
+     */
+    void onOverload()
+    {
+        lock.lock();
+        try {
+            final int lowered = Math.max(1, active - 1);
+            successesSinceChange = 0;
+            if (lowered < limit) {
+                limit = lowered;
+                log.warn("FTP server {} refused a session (421). Lowered concurrent upload limit to {}", key, limit);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    int getLimit()
+    {
+        lock.lock();
+        try {
+            return limit;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package org.embulk.output.ftp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Minimal in-process FTP server for tests and benchmarks. It accepts any user, keeps only the size and CRC-32 of
+ * uploaded files and the directories created, and counts connections and bytes, so that the client side is all
+ * that is measured.
+ *
+ * Only passive mode and the commands the plugin sends are implemented. With {@code modeZ} the server announces
+ * MODE Z and inflates data sent in that mode, so that a transfer sent in the wrong mode fails.
+ */
+class EmbeddedFtpServer implements AutoCloseable
+{
+    private static final int DATA_ACCEPT_TIMEOUT_MILLIS = 30 * 1000;
+
+    private final ServerSocket listener;
+    private final ExecutorService sessions = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "embedded-ftp-session");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ConcurrentHashMap<String, Long> fileSizes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CRC32> fileChecksums = new ConcurrentHashMap<>();
+    private final AtomicReference<AppendFailure> appendFailure = new AtomicReference<>();
+    private final AtomicInteger appends = new AtomicInteger();
+    private final Set<String> directories = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger controlConnections = new AtomicInteger();
+    private final AtomicInteger peakControlConnections = new AtomicInteger();
+    private final AtomicInteger dataConnections = new AtomicInteger();
+    private final AtomicInteger peakDataConnections = new AtomicInteger();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final boolean modeZ;
+    private volatile boolean closed = false;
+
+    EmbeddedFtpServer() throws IOException
+    {
+        this(false);
+    }
+
+    EmbeddedFtpServer(boolean modeZ) throws IOException
+    {
+        this.modeZ = modeZ;
+        this.directories.add("/");
+        this.listener = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        final Thread acceptor = new Thread(this::acceptLoop, "embedded-ftp-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort()
+    {
+        return listener.getLocalPort();
+    }
+
+    int getPeakControlConnections()
+    {
+        return peakControlConnections.get();
+    }
+
+    int getPeakDataConnections()
+    {
+        return peakDataConnections.get();
+    }
+
+    long getUploadedBytes()
+    {
+        return uploadedBytes.get();
+    }
+
+    int getFileCount()
+    {
+        return fileSizes.size();
+    }
+
+    Optional<Long> getFileSize(String path)
+    {
+        return Optional.ofNullable(fileSizes.get(path));
+    }
+
+    /**
+     * Returns the CRC-32 of a file written by STOR and APPE.
+     */
+    Optional<Long> getFileChecksum(String path)
+    {
+        return Optional.ofNullable(fileChecksums.get(path)).map(CRC32::getValue);
+    }
+
+    int getAppendCount()
+    {
+        return appends.get();
+    }
+
+    /**
+     * Makes the next APPE fail with 426 after {@code bytes} bytes were received, which are kept like on a server
+     * that lost the data connection. Then the file is resized to {@code sizeAfterFailure}, e.g. by someone else.
+     */
+    void failNextAppend(long bytes, Optional<Long> sizeAfterFailure)
+    {
+        appendFailure.set(new AppendFailure(bytes, sizeAfterFailure));
+    }
+
+    boolean hasDirectory(String path)
+    {
+        return directories.contains(path);
+    }
+
+    void resetPeaks()
+    {
+        peakControlConnections.set(controlConnections.get());
+        peakDataConnections.set(dataConnections.get());
+    }
+
+    private void acceptLoop()
+    {
+        while (!closed) {
+            try {
+                final Socket socket = listener.accept();
+                sessions.execute(() -> serve(socket));
+            }
+            catch (IOException ex) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket)
+    {
+        updatePeak(peakControlConnections, controlConnections.incrementAndGet());
+        ServerSocket passive = null;
+        long restartAt = 0;
+        String renameFrom = null;
+        String workingDirectory = "/";
+        boolean deflated = false;
+        try (Socket control = socket) {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(control.getInputStream(), StandardCharsets.ISO_8859_1));
+            final OutputStream out = control.getOutputStream();
+            reply(out, "220 embedded");
+            String line;
+            while ((line = in.readLine()) != null) {
+                final int space = line.indexOf(' ');
+                final String command = (space < 0 ? line : line.substring(0, space)).toUpperCase(Locale.ENGLISH);
+                final String argument = space < 0 ? "" : line.substring(space + 1);
+                final String path = resolve(workingDirectory, argument);
+                switch (command) {
+                    case "USER":
+                        reply(out, "331 password");
+                        break;
+                    case "PASS":
+                        reply(out, "230 logged in");
+                        break;
+                    case "FEAT":
+                        reply(out, "211-Features:\r\n SIZE\r\n REST STREAM\r\n" + (modeZ ? " MODE Z\r\n" : "") + "211 End");
+                        break;
+                    case "PWD":
+                        reply(out, "257 \"" + workingDirectory + "\"");
+                        break;
+                    case "SYST":
+                        reply(out, "215 UNIX");
+                        break;
+                    case "PASV":
+                        if (passive != null) {
+                            passive.close();
+                        }
+                        passive = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                        passive.setSoTimeout(DATA_ACCEPT_TIMEOUT_MILLIS);
+                        final int port = passive.getLocalPort();
+                        reply(out, String.format("227 Entering Passive Mode (127,0,0,1,%d,%d)", port >> 8, port & 0xff));
+                        break;
+                    case "REST":
+                        restartAt = Long.parseLong(argument.trim());
+                        reply(out, "350 restarting");
+                        break;
+                    case "STOR":
+                    case "APPE":
+                        if (passive == null) {
+                            reply(out, "425 use PASV first");
+                            break;
+                        }
+                        if (!directories.contains(parentOf(path))) {
+                            passive.close();
+                            passive = null;
+                            reply(out, "553 no such directory");
+                            break;
+                        }
+                        reply(out, "150 ok");
+                        final boolean append = "APPE".equals(command);
+                        final AppendFailure failure = append ? appendFailure.getAndSet(null) : null;
+                        final CRC32 checksum = append ? fileChecksums.computeIfAbsent(path, key -> new CRC32()) : new CRC32();
+                        final long received;
+                        try {
+                            received = receive(passive, deflated, failure == null ? Long.MAX_VALUE : failure.bytes, checksum);
+                        }
+                        catch (ZipException ex) {
+                            reply(out, "451 invalid compressed data");
+                            break;
+                        }
+                        finally {
+                            passive.close();
+                            passive = null;
+                        }
+                        final long base = append ? fileSizes.getOrDefault(path, 0L) : restartAt;
+                        fileSizes.put(path, base + received);
+                        fileChecksums.put(path, checksum);
+                        restartAt = 0;
+                        if (append) {
+                            appends.incrementAndGet();
+                        }
+                        if (failure != null) {
+                            failure.sizeAfterFailure.ifPresent(size -> fileSizes.put(path, size));
+                            reply(out, "426 connection closed; transfer aborted");
+                            break;
+                        }
+                        reply(out, "226 transfer complete");
+                        break;
+                    case "SIZE":
+                        final Long size = fileSizes.get(path);
+                        reply(out, size == null ? "550 no such file" : "213 " + size);
+                        break;
+                    case "DELE":
+                        fileChecksums.remove(path);
+                        reply(out, fileSizes.remove(path) == null ? "550 no such file" : "250 deleted");
+                        break;
+                    case "RNFR":
+                        if (!fileSizes.containsKey(path)) {
+                            reply(out, "550 no such file");
+                            break;
+                        }
+                        renameFrom = path;
+                        reply(out, "350 ready");
+                        break;
+                    case "RNTO":
+                        final Long renamed = renameFrom == null ? null : fileSizes.remove(renameFrom);
+                        final CRC32 renamedChecksum = renameFrom == null ? null : fileChecksums.remove(renameFrom);
+                        renameFrom = null;
+                        if (renamed == null) {
+                            reply(out, "503 use RNFR first");
+                            break;
+                        }
+                        fileSizes.put(path, renamed);
+                        if (renamedChecksum != null) {
+                            fileChecksums.put(path, renamedChecksum);
+                        }
+                        reply(out, "250 renamed");
+                        break;
+                    case "MODE":
+                        if ("S".equalsIgnoreCase(argument.trim()) || (modeZ && "Z".equalsIgnoreCase(argument.trim()))) {
+                            deflated = "Z".equalsIgnoreCase(argument.trim());
+                            reply(out, "200 ok");
+                        }
+                        else {
+                            reply(out, "504 unsupported mode");
+                        }
+                        break;
+                    case "CWD":
+                        if (!directories.contains(path)) {
+                            reply(out, "550 no such directory");
+                            break;
+                        }
+                        workingDirectory = path;
+                        reply(out, "250 ok");
+                        break;
+                    case "MKD":
+                        if (!directories.contains(parentOf(path))) {
+                            reply(out, "550 no such directory");
+                            break;
+                        }
+                        reply(out, directories.add(path) ? "257 created" : "550 already exists");
+                        break;
+                    case "ABOR":
+                        // the transfer was already answered when its data connection was closed
+                        reply(out, "226 aborted");
+                        break;
+                    case "TYPE":
+                    case "PBSZ":
+                    case "PROT":
+                    case "NOOP":
+                    case "OPTS":
+                        reply(out, "200 ok");
+                        break;
+                    case "QUIT":
+                        reply(out, "221 bye");
+                        return;
+                    default:
+                        reply(out, "502 not implemented");
+                        break;
+                }
+            }
+        }
+        catch (IOException ex) {
+            // the client went away
+        }
+        finally {
+            controlConnections.decrementAndGet();
+            if (passive != null) {
+                try {
+                    passive.close();
+                }
+                catch (IOException ex) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private long receive(ServerSocket passive, boolean deflated, long limit, CRC32 checksum) throws IOException
+    {
+        try (Socket data = passive.accept(); InputStream in = deflated ? new InflaterInputStream(data.getInputStream()) : data.getInputStream()) {
+            updatePeak(peakDataConnections, dataConnections.incrementAndGet());
+            try {
+                final byte[] buffer = new byte[64 * 1024];
+                long total = 0;
+                int n;
+                while (total < limit && (n = in.read(buffer, 0, (int) Math.min(buffer.length, limit - total))) >= 0) {
+                    checksum.update(buffer, 0, n);
+                    total += n;
+                }
+                uploadedBytes.addAndGet(total);
+                return total;
+            }
+            finally {
+                dataConnections.decrementAndGet();
+            }
+        }
+        catch (SocketTimeoutException ex) {
+            throw new IOException("No data connection", ex);
+        }
+    }
+
+    private static class AppendFailure
+    {
+        private final long bytes;
+        private final Optional<Long> sizeAfterFailure;
+
+        AppendFailure(long bytes, Optional<Long> sizeAfterFailure)
+        {
+            this.bytes = bytes;
+            this.sizeAfterFailure = sizeAfterFailure;
+        }
+    }
+
+    private static String resolve(String workingDirectory, String path)
+    {
+        if (path.startsWith("/")) {
+            return path;
+        }
+        return workingDirectory.endsWith("/") ? workingDirectory + path : workingDirectory + "/" + path;
+    }
+
+    private static String parentOf(String path)
+    {
+        final int slash = path.lastIndexOf('/');
+        return slash <= 0 ? "/" : path.substring(0, slash);
+    }
+
+    private static void reply(OutputStream out, String reply) throws IOException
+    {
+        out.write((reply + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    private static void updatePeak(AtomicInteger peak, int value)
+    {
+        peak.accumulateAndGet(value, Math::max);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        listener.close();
+        sessions.shutdownNow();
+    }
+}
@@ -0,0 +1,297 @@
+package org.embulk.output.ftp;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Exec;
+import org.embulk.spi.TransactionalFileOutput;
+import org.embulk.util.config.ConfigMapperFactory;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Resource footprint of concurrent tasks against an in-process FTP server, to size workers and to catch
+ * regressions in the per-task overhead of the plugin.
+ *
+ * Skipped unless FTP_BENCHMARK=true. For each task count in FTP_BENCHMARK_TASK_COUNTS all tasks run at once while
+ * threads, open file descriptors, heap, temporary disk usage and server connections are sampled. Peaks, per-task
+ * increments and throughput in files/s and MB/s are logged and written as TSV to FTP_BENCHMARK_REPORT.
+ */
+public class ScalabilityBenchmark
+{
+    private static final Logger log = LoggerFactory.getLogger(ScalabilityBenchmark.class);
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = FtpFileOutputPlugin.CONFIG_MAPPER_FACTORY;
+    private static final int FILES_PER_TASK = 2;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int CHUNKS_PER_FILE = 4;
+    private static final long SAMPLE_INTERVAL_MILLIS = 100;
+
+    private static boolean FTP_BENCHMARK;
+    private static List<Integer> TASK_COUNTS;
+    private static Path REPORT;
+
+    @BeforeClass
+    public static void initializeConstant()
+    {
+        final Map<String, String> env = System.getenv();
+        FTP_BENCHMARK = Boolean.parseBoolean(env.getOrDefault("FTP_BENCHMARK", "false"));
+        TASK_COUNTS = new ArrayList<>();
+        for (String count : env.getOrDefault("FTP_BENCHMARK_TASK_COUNTS", "1,10,100,1000").split(",")) {
+            TASK_COUNTS.add(Integer.valueOf(count.trim()));
+        }
+        REPORT = Paths.get(env.getOrDefault("FTP_BENCHMARK_REPORT", "build/reports/scalability-benchmark.tsv"));
+    }
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+    private FtpFileOutputPlugin plugin;
+
+    @Before
+    public void createResources()
+    {
+        assumeTrue("set FTP_BENCHMARK=true to run scalability benchmarks", FTP_BENCHMARK);
+        plugin = new FtpFileOutputPlugin();
+    }
+
+    @Test
+    public void concurrentTasks() throws Exception
+    {
+        final List<String> rows = new ArrayList<>();
+        rows.add(Result.HEADER);
+        try (EmbeddedFtpServer server = new EmbeddedFtpServer()) {
+            for (int taskCount : TASK_COUNTS) {
+                final Result result = run(server, taskCount);
+                log.info("{}", result.toString().replace('\t', ' '));
+                rows.add(result.toString());
+            }
+        }
+        if (REPORT.getParent() != null) {
+            Files.createDirectories(REPORT.getParent());
+        }
+        Files.write(REPORT, rows, StandardCharsets.UTF_8);
+        log.info("Wrote {}", REPORT.toAbsolutePath());
+    }
+
+    private Result run(EmbeddedFtpServer server, int taskCount) throws Exception
+    {
+        final List<byte[]> chunks = new ArrayList<>();
+        final Random random = new Random(0);
+        for (int i = 0; i < CHUNKS_PER_FILE; i++) {
+            final byte[] chunk = new byte[CHUNK_SIZE];
+            random.nextBytes(chunk);
+            chunks.add(chunk);
+        }
+        final long expectedBytes = (long) taskCount * FILES_PER_TASK * CHUNKS_PER_FILE * CHUNK_SIZE;
+
+        final ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("host", "127.0.0.1")
+                .set("port", server.getPort())
+                .set("user", "bench")
+                .set("password", "bench")
+                .set("path_prefix", "/bench/tasks_" + taskCount + "_")
+                .set("file_ext", ".bin");
+
+        System.gc();
+        server.resetPeaks();
+        final long uploadedBefore = server.getUploadedBytes();
+        final List<TaskReport> reports = new ArrayList<>();
+        final long start;
+        final long elapsedNanos;
+        try (Sampler sampler = new Sampler(getTempDirectory())) {
+            start = System.nanoTime();
+            plugin.transaction(config, taskCount, taskSource -> {
+                // threads are created from this thread, so they inherit its Exec session
+                final ExecutorService workers = Executors.newFixedThreadPool(taskCount);
+                final CountDownLatch startGate = new CountDownLatch(1);
+                try {
+                    final List<Future<TaskReport>> futures = new ArrayList<>();
+                    for (int taskIndex = 0; taskIndex < taskCount; taskIndex++) {
+                        final int index = taskIndex;
+                        futures.add(workers.submit(() -> {
+                            startGate.await();
+                            final TransactionalFileOutput output = plugin.open(taskSource, index);
+                            try {
+                                for (int i = 0; i < FILES_PER_TASK; i++) {
+                                    output.nextFile();
+                                    for (byte[] chunk : chunks) {
+                                        output.add(Buffer.wrap(chunk));
+                                    }
+                                }
+                                output.finish();
+                                return output.commit();
+                            }
+                            finally {
+                                output.close();
+                            }
+                        }));
+                    }
+                    startGate.countDown();
+                    for (Future<TaskReport> future : futures) {
+                        reports.add(future.get());
+                    }
+                }
+                catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+                finally {
+                    workers.shutdownNow();
+                }
+                return reports;
+            });
+            elapsedNanos = System.nanoTime() - start;
+            sampler.sample();
+
+            assertEquals(taskCount, reports.size());
+            // at least, since the probe file of preflight_write_check would be counted too
+            assertTrue(server.getUploadedBytes() - uploadedBefore >= expectedBytes);
+            return new Result(taskCount, elapsedNanos, expectedBytes, sampler,
+                    server.getPeakControlConnections(), server.getPeakDataConnections());
+        }
+    }
+
+    private static Path getTempDirectory() throws IOException
+    {
+        final File probe = Exec.getTempFileSpace().createTempFile("probe");
+        final Path directory = probe.getParentFile().toPath();
+        Files.delete(probe.toPath());
+        return directory;
+    }
+
+    /**
+     * Samples JVM-wide resources in the background and keeps their baseline and peak.
+     */
+    private static class Sampler implements AutoCloseable
+    {
+        private final Path tempDirectory;
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "benchmark-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long baseThreads;
+        final long baseFileDescriptors;
+        final long baseHeapBytes;
+        long peakThreads;
+        long peakFileDescriptors;
+        long peakHeapBytes;
+        long peakTempBytes;
+
+        Sampler(Path tempDirectory)
+        {
+            this.tempDirectory = tempDirectory;
+            this.baseThreads = threads();
+            this.baseFileDescriptors = fileDescriptors();
+            this.baseHeapBytes = heapBytes();
+            sample();
+            scheduler.scheduleAtFixedRate(this::sample, SAMPLE_INTERVAL_MILLIS, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized void sample()
+        {
+            peakThreads = Math.max(peakThreads, threads());
+            peakFileDescriptors = Math.max(peakFileDescriptors, fileDescriptors());
+            peakHeapBytes = Math.max(peakHeapBytes, heapBytes());
+            peakTempBytes = Math.max(peakTempBytes, tempBytes());
+        }
+
+        private static long threads()
+        {
+            return ManagementFactory.getThreadMXBean().getThreadCount();
+        }
+
+        private static long fileDescriptors()
+        {
+            final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+                return ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+            }
+            return -1;
+        }
+
+        private static long heapBytes()
+        {
+            return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        }
+
+        private long tempBytes()
+        {
+            try (Stream<Path> files = Files.walk(tempDirectory)) {
+                return files.mapToLong(path -> path.toFile().length()).sum();
+            }
+            catch (IOException | RuntimeException ex) {
+                // files are deleted while walking
+                return peakTempBytes;
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private static class Result
+    {
+        static final String HEADER = "tasks\telapsed_ms\tfiles_per_s\tmb_per_s\tpeak_threads\tthreads_per_task\tpeak_fds\tfds_per_task"
+                + "\tpeak_heap_mb\theap_kb_per_task\tpeak_temp_mb\tpeak_control_connections\tpeak_data_connections";
+
+        private final String row;
+
+        Result(int taskCount, long elapsedNanos, long bytes, Sampler sampler, int peakControlConnections, int peakDataConnections)
+        {
+            synchronized (sampler) {
+                this.row = String.format("%d\t%d\t%.1f\t%.1f\t%d\t%.2f\t%d\t%.2f\t%.1f\t%.1f\t%.1f\t%d\t%d",
+                        taskCount,
+                        elapsedNanos / 1_000_000,
+                        taskCount * FILES_PER_TASK * 1_000_000_000.0 / elapsedNanos,
+                        bytes * 1000.0 / elapsedNanos,
+                        sampler.peakThreads,
+                        (sampler.peakThreads - sampler.baseThreads) / (double) taskCount,
+                        sampler.peakFileDescriptors,
+                        (sampler.peakFileDescriptors - sampler.baseFileDescriptors) / (double) taskCount,
+                        sampler.peakHeapBytes / 1024.0 / 1024.0,
+                        (sampler.peakHeapBytes - sampler.baseHeapBytes) / 1024.0 / taskCount,
+                        sampler.peakTempBytes / 1024.0 / 1024.0,
+                        peakControlConnections,
+                        peakDataConnections);
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return row;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package org.embulk.output.ftp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+public class TestCoalescer
+{
+    @Test
+    public void testConcatenatesUntilTargetSize() throws IOException
+    {
+        final Path dir = Files.createTempDirectory("coalescer");
+        final Coalescer coalescer = Coalescer.of(dir + "/concat_", 8, false);
+        coalescer.open();
+        coalescer.open();
+
+        assertFalse(coalescer.add(spool(dir, "abc"), "a", 3).isPresent());
+        final Optional<Coalescer.Part> part = coalescer.add(spool(dir, "defgh"), "b", 5);
+        assertTrue(part.isPresent());
+        assertEquals(3, part.get().taskIndex);
+        assertEquals(0, part.get().partIndex);
+        assertEquals("abcdefgh", new String(Files.readAllBytes(part.get().file.toPath()), StandardCharsets.UTF_8));
+
+        assertFalse(coalescer.add(spool(dir, "ij"), "c", 5).isPresent());
+        assertFalse(coalescer.release(3, true).isPresent());
+        final Optional<Coalescer.Part> rest = coalescer.release(5, true);
+        assertTrue(rest.isPresent());
+        assertEquals(1, rest.get().partIndex);
+        assertEquals("ij", new String(Files.readAllBytes(rest.get().file.toPath()), StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("3.0"), coalescer.getContributions(3));
+        assertEquals(Arrays.asList("3.0", "5.1"), coalescer.getContributions(5));
+    }
+
+    @Test
+    public void testFailedOutputLeavesRestOfOthers() throws IOException
+    {
+        final Path dir = Files.createTempDirectory("coalescer");
+        final Coalescer coalescer = Coalescer.of(dir + "/others_", 1024, false);
+        coalescer.open();
+        coalescer.open();
+        coalescer.add(spool(dir, "abc"), "a", 0);
+        assertFalse(coalescer.release(1, false).isPresent());
+
+        final Optional<Coalescer.Part> rest = coalescer.release(0, true);
+        assertTrue(rest.isPresent());
+        assertEquals("abc", new String(Files.readAllBytes(rest.get().file.toPath()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testFailedOutputDiscardsItsPart() throws IOException
+    {
+        final Path dir = Files.createTempDirectory("coalescer");
+        final Coalescer coalescer = Coalescer.of(dir + "/own_", 1024, false);
+        coalescer.open();
+        coalescer.open();
+        coalescer.add(spool(dir, "abc"), "a", 0);
+        coalescer.add(spool(dir, "def"), "b", 1);
+        assertFalse(coalescer.release(1, false).isPresent());
+        assertEquals(0, countFiles(dir));
+
+        try {
+            coalescer.release(0, true);
+            fail();
+        }
+        catch (IOException ex) {
+            // rows of task 0 were in the discarded part
+        }
+    }
+
+    @Test
+    public void testLastOutputFailingDiscardsRestOfCommittedOutputs() throws IOException
+    {
+        final Path dir = Files.createTempDirectory("coalescer");
+        final Coalescer coalescer = Coalescer.of(dir + "/committed_", 1024, false);
+        coalescer.open();
+        coalescer.open();
+        coalescer.add(spool(dir, "abc"), "a", 0);
+        // task 0 commits while its rows are left to task 1
+        assertFalse(coalescer.release(0, true).isPresent());
+        assertFalse(coalescer.release(1, false).isPresent());
+        assertEquals(0, countFiles(dir));
+        assertEquals(Arrays.asList("0.0"), coalescer.getContributions(0));
+    }
+
+    @Test
+    public void testDiscardedPartFailsContributors() throws IOException
+    {
+        final Path dir = Files.createTempDirectory("coalescer");
+        final Coalescer coalescer = Coalescer.of(dir + "/discarded_", 4, false);
+        coalescer.open();
+        coalescer.open();
+        coalescer.add(spool(dir, "ab"), "a", 0);
+        final Coalescer.Part part = coalescer.add(spool(dir, "cd"), "b", 1).get();
+        // task 1 failed to upload the part
+        coalescer.discard(part);
+        assertFalse(part.file.exists());
+
+        try {
+            coalescer.add(spool(dir, "ef"), "c", 0);
+            fail();
+        }
+        catch (IOException ex) {
+            // rows of task 0 were in the discarded part
+        }
+    }
+
+    @Test
+    public void testSeparatesKeys() throws IOException
+    {
+        final Path dir = Files.createTempDirectory("coalescer");
+        assertNotSame(Coalescer.of(dir + "/size_8", 8, false), Coalescer.of(dir + "/size_16", 16, false));
+        final Coalescer coalescer = Coalescer.of(dir + "/removed_", 1024, false);
+        coalescer.open();
+        coalescer.add(spool(dir, "abc"), "a", 0);
+
+        Coalescer.remove(dir + "/removed_");
+        assertEquals(0, countFiles(dir));
+        assertNotSame(coalescer, Coalescer.of(dir + "/removed_", 1024, false));
+    }
+
+    @Test
+    public void testTarFraming() throws IOException
+    {
+        final Path dir = Files.createTempDirectory("coalescer");
+        final Coalescer coalescer = Coalescer.of(dir + "/tar_", 1024 * 1024, true);
+        coalescer.open();
+        coalescer.add(spool(dir, "hello\n"), "sample_000.00.csv", 0);
+        final byte[] tar = Files.readAllBytes(coalescer.release(0, true).get().file.toPath());
+
+        // header, one padded data block and two zero blocks
+        assertEquals(512 * 4, tar.length);
+        assertEquals("sample_000.00.csv", new String(tar, 0, 17, StandardCharsets.US_ASCII));
+        assertEquals("00000000006", new String(tar, 124, 11, StandardCharsets.US_ASCII));
+        assertEquals("ustar", new String(tar, 257, 5, StandardCharsets.US_ASCII));
+        assertEquals("hello\n", new String(tar, 512, 6, StandardCharsets.US_ASCII));
+        assertArrayEquals(new byte[1024], Arrays.copyOfRange(tar, 1024, 2048));
+    }
+
+    @Test
+    public void testTarHeaderChecksum()
+    {
+        final byte[] header = Coalescer.tarHeader("a.csv", 10);
+        long sum = 0;
+        for (int i = 0; i < header.length; i++) {
+            sum += (i >= 148 && i < 156) ? ' ' : header[i] & 0xff;
+        }
+        assertEquals(sum, Long.parseLong(new String(header, 148, 6, StandardCharsets.US_ASCII), 8));
+    }
+
+    private static long countFiles(Path dir) throws IOException
+    {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+
+    private static File spool(Path dir, String contents) throws IOException
+    {
+        final File file = Files.createTempFile(dir, "spool", ".tmp").toFile();
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
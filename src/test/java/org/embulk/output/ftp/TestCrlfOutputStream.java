@@ -0,0 +1,71 @@
+package org.embulk.output.ftp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+public class TestCrlfOutputStream
+{
+    @Test
+    public void testConvertsBareLf() throws IOException
+    {
+        assertEquals("a\r\nb\r\n\r\nc", convert("a\nb\n\nc"));
+    }
+
+    @Test
+    public void testKeepsCrlfAndBareCr() throws IOException
+    {
+        assertEquals("a\r\nb\rc\r\n", convert("a\r\nb\rc\n"));
+    }
+
+    @Test
+    public void testCrlfAcrossWrites() throws IOException
+    {
+        assertEquals("a\r\nb\r\nc", convert("a\r", "\nb", "\n", "c"));
+    }
+
+    @Test
+    public void testSingleByteWrites() throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (CrlfOutputStream out = new CrlfOutputStream(bytes)) {
+            for (byte b : "a\nb\r\nc".getBytes(StandardCharsets.US_ASCII)) {
+                out.write(b);
+            }
+        }
+        assertEquals("a\r\nb\r\nc", new String(bytes.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testCrlfAcrossStreams() throws IOException
+    {
+        final ByteArrayOutputStream first = new ByteArrayOutputStream();
+        final boolean lastWasCr;
+        try (CrlfOutputStream out = new CrlfOutputStream(first)) {
+            out.write("a\r".getBytes(StandardCharsets.US_ASCII));
+            lastWasCr = out.endsWithCr();
+        }
+        final ByteArrayOutputStream second = new ByteArrayOutputStream();
+        try (CrlfOutputStream out = new CrlfOutputStream(second, lastWasCr)) {
+            out.write("\nb\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        assertEquals("a\r", new String(first.toByteArray(), StandardCharsets.US_ASCII));
+        assertEquals("\nb\r\n", new String(second.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    private static String convert(String... chunks) throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (CrlfOutputStream out = new CrlfOutputStream(bytes)) {
+            for (String chunk : chunks) {
+                final byte[] b = ("xx" + chunk + "yy").getBytes(StandardCharsets.US_ASCII);
+                out.write(b, 2, b.length - 4);
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.US_ASCII);
+    }
+}
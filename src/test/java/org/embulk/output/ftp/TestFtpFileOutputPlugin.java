@@ -5,6 +5,8 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.io.Resources;
 import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
 import org.embulk.EmbulkTestRuntime;
 import org.embulk.config.ConfigDiff;
 import org.embulk.config.ConfigException;
@@ -32,6 +34,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
@@ -41,12 +46,19 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
+import java.time.Year;
+import java.time.ZoneOffset;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.zip.CRC32;
 
 public class TestFtpFileOutputPlugin
 {
@@ -123,10 +135,160 @@ public class TestFtpFileOutputPlugin
         assertEquals(FTP_TEST_PASSWORD, task.getPassword().get());
         assertEquals(true, task.getPassiveMode());
         assertEquals(false, task.getAsciiMode());
+        assertEquals(false, task.getAsciiModeClientConversion());
         assertEquals(false, task.getSsl());
         assertEquals(true, task.getSslExplicit());
         assertEquals(10, task.getMaxConnectionRetry());
         assertEquals("/", task.getDirectorySeparator());
+        assertEquals(Optional.empty(), task.getMaxConcurrentUploads());
+        assertEquals(Optional.empty(), task.getMaxTransferRetry());
+        assertEquals(Optional.empty(), task.getCircuitBreakerThreshold());
+        assertEquals(60, task.getCircuitBreakerTimeout());
+        assertEquals(false, task.getMetricsJmx());
+        assertEquals(Optional.empty(), task.getProgressLogInterval());
+        assertEquals(100, task.getProtocolTraceSize());
+        assertEquals(30, task.getConnectionTimeout());
+        assertEquals(60, task.getReadTimeout());
+        assertEquals(60, task.getCloseTimeout());
+        assertEquals(30, task.getKeepaliveInterval());
+        assertEquals("private", task.getSslDataChannel());
+        assertEquals(Optional.empty(), task.getSocketSendBufferSize());
+        assertEquals(false, task.getTcpNoDelay());
+        assertEquals(Optional.empty(), task.getProtocolTraceSlowThreshold());
+        assertEquals(Optional.empty(), task.getCheckpointSize());
+        assertEquals(Optional.empty(), task.getCheckpointInterval());
+        assertEquals("none", task.getSpoolCompression());
+        assertEquals(true, task.getPreflight());
+        assertEquals(false, task.getPreflightWriteCheck());
+        assertEquals(Optional.empty(), task.getMinFreeSpace());
+        assertEquals(Optional.empty(), task.getMaxHostSessions());
+        assertEquals(Optional.empty(), task.getMaxHostBandwidthMbps());
+        assertEquals(Optional.empty(), task.getSessionLockDir());
+        assertEquals("none", task.getShardBy());
+        assertEquals(256, task.getShardCount());
+        assertEquals("yyyyMMddHH", task.getShardTimeFormat());
+        assertEquals(Optional.empty(), task.getShardManifestPath());
+        assertEquals(Optional.empty(), task.getCoalesceSize());
+        assertEquals("concat", task.getCoalesceFormat());
+        assertEquals(Optional.empty(), task.getMinTransferRate());
+        assertEquals(30, task.getStallWindow());
+        assertEquals(0, task.getHedgeHosts().size());
+        assertEquals("ftp", task.getSink());
+        assertEquals(Optional.empty(), task.getSinkLocalDir());
+        assertEquals(0, task.getDestinations().size());
+        assertEquals(Optional.empty(), task.getDestinationQuorum());
+    }
+
+    @Test
+    public void testDisableDataChannelEncryption() throws Exception
+    {
+        final FTPClient client = new FTPClient();
+        final Field field = FTPClient.class.getDeclaredField("dataChannelEncrypted");
+        field.setAccessible(true);
+        field.setBoolean(client, true);
+        FtpFileOutputPlugin.disableDataChannelEncryption(client);
+        assertEquals(false, field.getBoolean(client));
+    }
+
+    @Test
+    public void testDisablesDataChannelEncryptionAfterLogin() throws Exception
+    {
+        final Field field = FTPClient.class.getDeclaredField("dataChannelEncrypted");
+        field.setAccessible(true);
+        try (EmbeddedFtpServer server = new EmbeddedFtpServer()) {
+            final FTPClient client = new FTPClient()
+            {
+                @Override
+                public void login(String user, String password) throws IOException, FTPIllegalReplyException, FTPException
+                {
+                    super.login(user, password);
+                    try {
+                        // as ftp4j does after PROT P on a TLS connection
+                        field.setBoolean(this, true);
+                    }
+                    catch (IllegalAccessException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            };
+            client.connect("127.0.0.1", server.getPort());
+            final PluginTask task = CONFIG_MAPPER.map(config()
+                    .set("ssl", true)
+                    .set("ssl_data_channel", "clear"), PluginTask.class);
+
+            FtpFileOutputPlugin.login(client, task);
+
+            assertEquals(false, field.getBoolean(client));
+            FtpFileOutputPlugin.disconnectClient(client);
+        }
+    }
+
+    @Test
+    public void testGetDestinationTasks()
+    {
+        final ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("host", FTP_TEST_HOST)
+                .set("port", FTP_TEST_PORT)
+                .set("user", FTP_TEST_USER)
+                .set("password", FTP_TEST_PASSWORD)
+                .set("path_prefix", "my-prefix")
+                .set("file_ext", ".csv")
+                .set("destinations", ImmutableList.of(
+                        ImmutableMap.of("host", "partner1.example.com"),
+                        ImmutableMap.of("host", "partner2.example.com", "port", 2121, "path_prefix", "other-prefix")));
+
+        final PluginTask task = CONFIG_MAPPER.map(config, PluginTask.class);
+        task.setSSLConfig(SSLPlugins.configure(task));
+        final List<PluginTask> destinations = FtpFileOutputPlugin.getDestinationTasks(task);
+
+        assertEquals(2, destinations.size());
+        assertEquals("partner1.example.com", destinations.get(0).getHost());
+        assertEquals(FTP_TEST_PORT, destinations.get(0).getPort().get());
+        assertEquals("my-prefix", destinations.get(0).getPathPrefix());
+        assertEquals(FTP_TEST_USER, destinations.get(0).getUser().get());
+        assertEquals("partner2.example.com", destinations.get(1).getHost());
+        assertEquals(Integer.valueOf(2121), destinations.get(1).getPort().get());
+        assertEquals("other-prefix", destinations.get(1).getPathPrefix());
+        assertEquals(0, destinations.get(1).getDestinations().size());
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testTransactionWithSpoolOptionInDestinations()
+    {
+        ConfigSource config = Exec.newConfigSource()
+                .set("in", inputConfig())
+                .set("parser", parserConfig(schemaConfig()))
+                .set("type", "ftp")
+                .set("host", FTP_TEST_HOST)
+                .set("port", FTP_TEST_PORT)
+                .set("user", FTP_TEST_USER)
+                .set("password", FTP_TEST_PASSWORD)
+                .set("path_prefix", "my-prefix")
+                .set("file_ext", ".csv")
+                .set("destinations", ImmutableList.of(
+                        ImmutableMap.of("host", FTP_TEST_HOST),
+                        ImmutableMap.of("host", FTP_TEST_HOST, "spool_compression", "deflate")))
+                .set("formatter", formatterConfig());
+
+        Schema schema = config.getNested("parser").loadConfig(CsvParserPlugin.PluginTask.class).getSchemaConfig().toSchema();
+
+        runner.transaction(config, schema, 0, new Control());
+    }
+
+    @Test
+    public void testGetEffectivePort()
+    {
+        final ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("host", FTP_TEST_HOST)
+                .set("path_prefix", "my-prefix")
+                .set("file_ext", ".csv");
+        assertEquals(21, FtpFileOutputPlugin.getEffectivePort(CONFIG_MAPPER.map(config, PluginTask.class)));
+        config.set("ssl", true);
+        assertEquals(21, FtpFileOutputPlugin.getEffectivePort(CONFIG_MAPPER.map(config, PluginTask.class)));
+        config.set("ssl_explicit", false);
+        assertEquals(990, FtpFileOutputPlugin.getEffectivePort(CONFIG_MAPPER.map(config, PluginTask.class)));
+        config.set("port", 2121);
+        assertEquals(2121, FtpFileOutputPlugin.getEffectivePort(CONFIG_MAPPER.map(config, PluginTask.class)));
     }
 
     @Test
@@ -289,6 +451,339 @@ public class TestFtpFileOutputPlugin
         assertRecords(remotePath, task);
     }
 
+    @Test
+    public void testFtpFileOutputWithMultipleFiles() throws Exception
+    {
+        final ConfigSource configSourceLegacy = configLegacy();
+        final LegacyPluginTask taskLegacy = configSourceLegacy.loadConfig(LegacyPluginTask.class);
+        final ConfigSource configSource = config();
+        final PluginTask task = CONFIG_MAPPER.map(configSource, PluginTask.class);
+        taskLegacy.setSSLConfig(SSLPlugins.configure(task));
+        Schema schema = configSourceLegacy.getNested("parser").loadConfig(CsvParserPlugin.PluginTask.class).getSchemaConfig().toSchema();
+        runner.transaction(configSourceLegacy, schema, 0, new Control());
+
+        TransactionalFileOutput output = plugin.open(taskLegacy.dump(), 1);
+
+        byte[] bytes = convertInputStreamToByte(new FileInputStream(LOCAL_PATH_PREFIX));
+        output.nextFile();
+        output.add(Buffer.wrap(bytes));
+        output.nextFile();
+        output.add(Buffer.wrap(bytes));
+
+        output.finish();
+        output.commit();
+
+        for (int fileIndex = 0; fileIndex < 2; fileIndex++) {
+            String remotePath = FTP_TEST_PATH_PREFIX + String.format(task.getSequenceFormat(), 1, fileIndex) + task.getFileNameExtension();
+            assertRecords(remotePath, task);
+        }
+    }
+
+    @Test
+    public void testFtpFileOutputWithLocalDirSink() throws Exception
+    {
+        final Path sinkDir = Files.createTempDirectory("embulk-output-ftp");
+        final ConfigSource configSource = config()
+                .set("path_prefix", "/sink/sample_")
+                .set("sink", "local_dir")
+                .set("sink_local_dir", sinkDir.toString());
+        final PluginTask task = CONFIG_MAPPER.map(configSource, PluginTask.class);
+        task.setSSLConfig(SSLPlugins.configure(task));
+
+        TransactionalFileOutput output = plugin.open(task.toTaskSource(), 0);
+        output.nextFile();
+        output.add(Buffer.wrap("a,b\n".getBytes("UTF-8")));
+        output.nextFile();
+        output.add(Buffer.wrap("c,d\n".getBytes("UTF-8")));
+        output.finish();
+        TaskReport report = output.commit();
+
+        assertEquals("a,b\n", getFileContents(sinkDir.resolve("sink/sample_000.00.csv").toString()));
+        assertEquals("c,d\n", getFileContents(sinkDir.resolve("sink/sample_000.01.csv").toString()));
+        assertEquals(8L, (long) report.get(Long.class, "bytes"));
+    }
+
+    @Test
+    public void testFtpFileOutputWithDeflatedSpool() throws Exception
+    {
+        final Path sinkDir = Files.createTempDirectory("embulk-output-ftp");
+        final ConfigSource configSource = config()
+                .set("path_prefix", "/sink/sample_")
+                .set("sink", "local_dir")
+                .set("sink_local_dir", sinkDir.toString())
+                .set("spool_compression", "deflate");
+        final PluginTask task = CONFIG_MAPPER.map(configSource, PluginTask.class);
+        task.setSSLConfig(SSLPlugins.configure(task));
+
+        TransactionalFileOutput output = plugin.open(task.toTaskSource(), 0);
+        output.nextFile();
+        output.add(Buffer.wrap("a,b\n".getBytes("UTF-8")));
+        output.add(Buffer.wrap("c,d\n".getBytes("UTF-8")));
+        output.finish();
+        output.commit();
+
+        // the sink gets the data inflated
+        assertEquals("a,b\nc,d\n", getFileContents(sinkDir.resolve("sink/sample_000.00.csv").toString()));
+    }
+
+    @Test
+    public void testFtpFileOutputWithDeflatedSpoolOverModeZ() throws Exception
+    {
+        try (EmbeddedFtpServer server = new EmbeddedFtpServer(true)) {
+            final ConfigSource configSource = config()
+                    .set("host", "127.0.0.1")
+                    .set("port", server.getPort())
+                    .set("path_prefix", "/sample_")
+                    .set("spool_compression", "deflate")
+                    .set("shard_by", "hash")
+                    .set("shard_count", 16)
+                    .set("shard_manifest_path", "/manifest.tsv");
+            final PluginTask task = CONFIG_MAPPER.map(configSource, PluginTask.class);
+            task.setSSLConfig(SSLPlugins.configure(task));
+
+            plugin.resume(task.toTaskSource(), 1, taskSource -> {
+                final TransactionalFileOutput output = plugin.open(taskSource, 0);
+                output.nextFile();
+                output.add(Buffer.wrap("a,b\n".getBytes(StandardCharsets.UTF_8)));
+                output.nextFile();
+                output.add(Buffer.wrap("c,d\n".getBytes(StandardCharsets.UTF_8)));
+                output.finish();
+                return Lists.newArrayList(output.commit());
+            });
+
+            // the server inflates MODE Z transfers and rejects raw bytes sent in MODE Z, e.g. the manifest
+            final ShardLayout shards = new ShardLayout("hash", 16, null, "/");
+            final String first = "/" + shards.shardOf(0, 0) + "/sample_000.00.csv";
+            final String second = "/" + shards.shardOf(0, 1) + "/sample_000.01.csv";
+            assertEquals(Optional.of(4L), server.getFileSize(first));
+            assertEquals(Optional.of(4L), server.getFileSize(second));
+            final String manifest = "/sample_000.00.csv\t" + first + "\n/sample_000.01.csv\t" + second + "\n";
+            assertEquals(Optional.of((long) manifest.length()), server.getFileSize("/manifest.tsv"));
+        }
+    }
+
+    @Test
+    public void testFtpFileOutputWithNestedManifestPath() throws Exception
+    {
+        try (EmbeddedFtpServer server = new EmbeddedFtpServer()) {
+            final ConfigSource configSource = config()
+                    .set("host", "127.0.0.1")
+                    .set("port", server.getPort())
+                    .set("path_prefix", "/sample_")
+                    .set("shard_by", "hash")
+                    .set("shard_count", 16)
+                    .set("shard_manifest_path", "/manifests/2024/manifest.tsv");
+            final PluginTask task = CONFIG_MAPPER.map(configSource, PluginTask.class);
+            task.setSSLConfig(SSLPlugins.configure(task));
+
+            plugin.resume(task.toTaskSource(), 1, taskSource -> {
+                final TransactionalFileOutput output = plugin.open(taskSource, 0);
+                output.nextFile();
+                output.add(Buffer.wrap("a,b\n".getBytes(StandardCharsets.UTF_8)));
+                output.finish();
+                return Lists.newArrayList(output.commit());
+            });
+
+            // no task created the directories of the manifest
+            final String first = "/" + new ShardLayout("hash", 16, null, "/").shardOf(0, 0) + "/sample_000.00.csv";
+            assertEquals(true, server.hasDirectory("/manifests/2024"));
+            assertEquals(Optional.of((long) ("/sample_000.00.csv\t" + first + "\n").length()),
+                    server.getFileSize("/manifests/2024/manifest.tsv"));
+        }
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testTransactionWithDeflatedSpoolInAsciiMode()
+    {
+        final ConfigSource config = config()
+                .set("spool_compression", "deflate")
+                .set("ascii_mode", true);
+        Schema schema = config.getNested("parser").loadConfig(CsvParserPlugin.PluginTask.class).getSchemaConfig().toSchema();
+        runner.transaction(config, schema, 0, new Control());
+    }
+
+    @Test
+    public void testFtpFileOutputWithCheckpoints() throws Exception
+    {
+        try (EmbeddedFtpServer server = new EmbeddedFtpServer()) {
+            final CRC32 expected = new CRC32();
+            final TransactionalFileOutput output = openWithCheckpoints(server);
+            output.nextFile();
+            // a checkpoint after every 2 chunks, and the rest on finish
+            for (int i = 0; i < 5; i++) {
+                output.add(Buffer.wrap(chunk(i, expected)));
+            }
+            output.finish();
+            output.commit();
+
+            assertEquals(Optional.of(5000L), server.getFileSize("/sample_000.00.csv"));
+            assertEquals(Optional.of(expected.getValue()), server.getFileChecksum("/sample_000.00.csv"));
+            assertEquals(2, server.getAppendCount());
+        }
+    }
+
+    @Test
+    public void testFtpFileOutputWithCheckpointsResumesFromRemoteSize() throws Exception
+    {
+        try (EmbeddedFtpServer server = new EmbeddedFtpServer()) {
+            final CRC32 expected = new CRC32();
+            final TransactionalFileOutput output = openWithCheckpoints(server);
+            output.nextFile();
+            output.add(Buffer.wrap(chunk(0, expected)));
+            output.add(Buffer.wrap(chunk(1, expected)));
+            // the first append loses its data connection after 500 of 2000 bytes
+            server.failNextAppend(500, Optional.empty());
+            for (int i = 2; i < 5; i++) {
+                output.add(Buffer.wrap(chunk(i, expected)));
+            }
+            output.finish();
+            output.commit();
+
+            assertEquals(Optional.of(5000L), server.getFileSize("/sample_000.00.csv"));
+            assertEquals(Optional.of(expected.getValue()), server.getFileChecksum("/sample_000.00.csv"));
+            assertEquals(3, server.getAppendCount());
+        }
+    }
+
+    @Test
+    public void testFtpFileOutputWithCheckpointsFailsOnUnexpectedRemoteSize() throws Exception
+    {
+        try (EmbeddedFtpServer server = new EmbeddedFtpServer()) {
+            final TransactionalFileOutput output = openWithCheckpoints(server);
+            output.nextFile();
+            output.add(Buffer.wrap(chunk(0, new CRC32())));
+            output.add(Buffer.wrap(chunk(1, new CRC32())));
+            // someone else truncated the file after the first append failed
+            server.failNextAppend(0, Optional.of(100L));
+            output.add(Buffer.wrap(chunk(2, new CRC32())));
+            try {
+                output.add(Buffer.wrap(chunk(3, new CRC32())));
+                fail();
+            }
+            catch (ConfigException ex) {
+                assertTrue(ex.getCause() instanceof FtpFileOutputPlugin.FtpFileOutput.OperationDeniedException);
+                assertEquals("Remote file \"/sample_000.00.csv\" has 100 bytes while 2000 bytes were uploaded", ex.getCause().getMessage());
+            }
+            output.abort();
+        }
+    }
+
+    private TransactionalFileOutput openWithCheckpoints(EmbeddedFtpServer server) throws Exception
+    {
+        final ConfigSource configSource = config()
+                .set("host", "127.0.0.1")
+                .set("port", server.getPort())
+                .set("path_prefix", "/sample_")
+                .set("checkpoint_size", 1500)
+                .set("max_transfer_retry", 1);
+        final PluginTask task = CONFIG_MAPPER.map(configSource, PluginTask.class);
+        task.setSSLConfig(SSLPlugins.configure(task));
+        return plugin.open(task.toTaskSource(), 0);
+    }
+
+    private static byte[] chunk(int index, CRC32 checksum)
+    {
+        final byte[] bytes = new byte[1000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (index * 31 + i);
+        }
+        checksum.update(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testFtpFileOutputWithShards() throws Exception
+    {
+        final Path sinkDir = Files.createTempDirectory("embulk-output-ftp");
+        final ConfigSource configSource = config()
+                .set("path_prefix", "/sink/sample_")
+                .set("sink", "local_dir")
+                .set("sink_local_dir", sinkDir.toString())
+                .set("shard_by", "hash")
+                .set("shard_count", 16)
+                .set("shard_manifest_path", "/sink/manifest.tsv");
+        final PluginTask task = CONFIG_MAPPER.map(configSource, PluginTask.class);
+        task.setSSLConfig(SSLPlugins.configure(task));
+
+        TransactionalFileOutput output = plugin.open(task.toTaskSource(), 0);
+        output.nextFile();
+        output.add(Buffer.wrap("a,b\n".getBytes("UTF-8")));
+        output.nextFile();
+        output.add(Buffer.wrap("c,d\n".getBytes("UTF-8")));
+        output.finish();
+        final TaskReport report = output.commit();
+        plugin.resume(task.toTaskSource(), 1, taskSource -> Lists.newArrayList(report));
+
+        final ShardLayout shards = new ShardLayout("hash", 16, null, "/");
+        final String first = "sink/" + shards.shardOf(0, 0) + "/sample_000.00.csv";
+        final String second = "sink/" + shards.shardOf(0, 1) + "/sample_000.01.csv";
+        assertEquals("a,b\n", getFileContents(sinkDir.resolve(first).toString()));
+        assertEquals("c,d\n", getFileContents(sinkDir.resolve(second).toString()));
+        assertEquals("/sink/sample_000.00.csv\t/" + first + "\n/sink/sample_000.01.csv\t/" + second + "\n",
+                getFileContents(sinkDir.resolve("sink/manifest.tsv").toString()));
+    }
+
+    @Test
+    public void testFtpFileOutputWithTimeShardsWithoutTransaction() throws Exception
+    {
+        final Path sinkDir = Files.createTempDirectory("embulk-output-ftp");
+        final ConfigSource configSource = config()
+                .set("path_prefix", "/sink/sample_")
+                .set("sink", "local_dir")
+                .set("sink_local_dir", sinkDir.toString())
+                .set("shard_by", "time")
+                .set("shard_time_format", "yyyy");
+        final PluginTask task = CONFIG_MAPPER.map(configSource, PluginTask.class);
+        task.setSSLConfig(SSLPlugins.configure(task));
+
+        // opened without transaction(), so the transaction time is not set
+        final String year = String.valueOf(Year.now(ZoneOffset.UTC).getValue());
+        TransactionalFileOutput output = plugin.open(task.toTaskSource(), 0);
+        output.nextFile();
+        output.add(Buffer.wrap("a,b\n".getBytes("UTF-8")));
+        output.finish();
+        output.commit();
+
+        assertEquals("a,b\n", getFileContents(sinkDir.resolve("sink/" + year + "/sample_000.00.csv").toString()));
+    }
+
+    @Test
+    public void testFailsTransactionWhenCoalescedRowsOfCommittedTaskAreLost() throws Exception
+    {
+        final Path sinkDir = Files.createTempDirectory("embulk-output-ftp");
+        final ConfigSource configSource = config()
+                .set("path_prefix", "/sink/sample_")
+                .set("sink", "local_dir")
+                .set("sink_local_dir", sinkDir.toString())
+                .set("coalesce_size", 1024 * 1024);
+        final PluginTask task = CONFIG_MAPPER.map(configSource, PluginTask.class);
+        task.setSSLConfig(SSLPlugins.configure(task));
+        task.setTransactionTimeMillis(Optional.of(System.currentTimeMillis()));
+
+        try {
+            plugin.resume(task.toTaskSource(), 2, taskSource -> {
+                final TransactionalFileOutput first = plugin.open(taskSource, 0);
+                final TransactionalFileOutput second = plugin.open(taskSource, 1);
+                first.nextFile();
+                first.add(Buffer.wrap("a,b\n".getBytes("UTF-8")));
+                first.finish();
+                // the rows of task 0 are left to task 1, which fails
+                final TaskReport report = first.commit();
+                first.close();
+                second.nextFile();
+                second.close();
+                return Lists.newArrayList(report);
+            });
+            fail();
+        }
+        catch (RuntimeException ex) {
+            // thrown by checkCoalescedParts, not by a failed task or upload
+            assertEquals(RuntimeException.class, ex.getClass());
+            assertNull(ex.getCause());
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("Coalesced parts [0.0] with rows of committed tasks were not uploaded"));
+        }
+    }
+
     public ConfigSource configLegacy()
     {
         return Exec.newConfigSource()
@@ -0,0 +1,57 @@
+package org.embulk.output.ftp;
+
+import it.sauronsoftware.ftp4j.FTPDataTransferException;
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
+import org.embulk.config.ConfigException;
+import org.embulk.output.ftp.FtpRetryPolicy.Failure;
+import org.embulk.util.retryhelper.RetryGiveupException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+public class TestFtpRetryPolicy
+{
+    @Test
+    public void testReplyCodes()
+    {
+        assertEquals(Failure.OVERLOADED, FtpRetryPolicy.classify(new FTPException(421, "Too many connections")));
+        assertEquals(Failure.TRANSIENT, FtpRetryPolicy.classify(new FTPException(425, "Can't open data connection")));
+        assertEquals(Failure.TRANSIENT, FtpRetryPolicy.classify(new FTPException(451, "Local error")));
+        assertEquals(Failure.PERMANENT, FtpRetryPolicy.classify(new FTPException(530, "Login incorrect")));
+        assertEquals(Failure.PERMANENT, FtpRetryPolicy.classify(new FTPException(552, "Quota exceeded")));
+        assertEquals(Failure.PERMANENT, FtpRetryPolicy.classify(new FTPException(553, "Bad file name")));
+    }
+
+    @Test
+    public void testWrappedReplyCodes()
+    {
+        assertEquals(Failure.PERMANENT, FtpRetryPolicy.classify(new RuntimeException(new FTPException(530, "Login incorrect"))));
+        assertEquals(Failure.OVERLOADED, FtpRetryPolicy.classify(
+                new RuntimeException(new RetryGiveupException(new RuntimeException(new FTPException(421, "Busy"))))));
+    }
+
+    @Test
+    public void testExceptionTypes()
+    {
+        assertEquals(Failure.TRANSIENT, FtpRetryPolicy.classify(new FTPIllegalReplyException()));
+        assertEquals(Failure.TRANSIENT, FtpRetryPolicy.classify(new FTPDataTransferException()));
+        assertEquals(Failure.TRANSIENT, FtpRetryPolicy.classify(new SocketTimeoutException("Read timed out")));
+        assertEquals(Failure.PERMANENT, FtpRetryPolicy.classify(new RuntimeException(new ConnectException("Connection refused"))));
+        assertEquals(Failure.PERMANENT, FtpRetryPolicy.classify(new UnknownHostException("non-exists.example.com")));
+        assertEquals(Failure.PERMANENT, FtpRetryPolicy.classify(new ConfigException("Couldn't delete local file")));
+    }
+
+    @Test
+    public void testRetriedAlready()
+    {
+        assertTrue(FtpRetryPolicy.isRetriedAlready(new RuntimeException(new RetryGiveupException(new SocketTimeoutException()))));
+        assertFalse(FtpRetryPolicy.isRetriedAlready(new SocketTimeoutException()));
+    }
+}
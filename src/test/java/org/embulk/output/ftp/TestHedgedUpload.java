@@ -0,0 +1,168 @@
+package org.embulk.output.ftp;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPDataTransferListener;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestHedgedUpload
+{
+    private static final Logger log = LoggerFactory.getLogger(TestHedgedUpload.class);
+    private static final HedgedUpload.SpoolOpener SPOOL = (file, client) -> new FileInputStream(file);
+
+    @Test
+    public void testPromotesHedgeToSameServer() throws Exception
+    {
+        final File file = newFile(1024 * 1024);
+        final AtomicInteger released = new AtomicInteger();
+        try (EmbeddedFtpServer server = new EmbeddedFtpServer();
+                WanEmulationProxy proxy = new WanEmulationProxy("127.0.0.1", server.getPort(),
+                        new WanEmulationProxy.Profile().stallData(64 * 1024, 3000))) {
+            final AtomicReference<FTPClient> hedgeClient = new AtomicReference<>();
+            final HedgedUpload hedging = new HedgedUpload(log, 100 * 1000, 1, () -> {
+                hedgeClient.set(connect(server.getPort()));
+                return new HedgedUpload.Connection(hedgeClient.get(), true, released::incrementAndGet);
+            }, SPOOL);
+
+            final FTPClient client = hedging.upload(connect(proxy.getPort()), file, "/out.csv", new NullListener());
+
+            assertSame(hedgeClient.get(), client);
+            assertTrue(client.isConnected());
+            // the replaced connection's slots cover the hedge connection from now on
+            assertEquals(1, released.get());
+            assertEquals(Optional.of(file.length()), server.getFileSize("/out.csv"));
+            assertFalse(server.getFileSize("/out.csv.hedge").isPresent());
+            FtpFileOutputPlugin.disconnectClient(client);
+        }
+    }
+
+    @Test
+    public void testDiscardsHedgeToAnotherServer() throws Exception
+    {
+        final File file = newFile(1024 * 1024);
+        final AtomicInteger released = new AtomicInteger();
+        try (EmbeddedFtpServer server = new EmbeddedFtpServer();
+                WanEmulationProxy proxy = new WanEmulationProxy("127.0.0.1", server.getPort(),
+                        new WanEmulationProxy.Profile().stallData(64 * 1024, 3000))) {
+            final AtomicReference<FTPClient> hedgeClient = new AtomicReference<>();
+            final HedgedUpload hedging = new HedgedUpload(log, 100 * 1000, 1, () -> {
+                hedgeClient.set(connect(server.getPort()));
+                return new HedgedUpload.Connection(hedgeClient.get(), false, released::incrementAndGet);
+            }, SPOOL);
+
+            assertNull(hedging.upload(connect(proxy.getPort()), file, "/out.csv", new NullListener()));
+            assertFalse(hedgeClient.get().isConnected());
+            assertEquals(1, released.get());
+            assertEquals(Optional.of(file.length()), server.getFileSize("/out.csv"));
+        }
+    }
+
+    @Test
+    public void testCancelDoesNotWaitForConnectingHedge() throws Exception
+    {
+        final File file = newFile(100 * 1024);
+        final CountDownLatch connecting = new CountDownLatch(1);
+        final CountDownLatch connectable = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        try (EmbeddedFtpServer server = new EmbeddedFtpServer();
+                WanEmulationProxy proxy = new WanEmulationProxy("127.0.0.1", server.getPort(),
+                        new WanEmulationProxy.Profile().stallData(64 * 1024, 4000))) {
+            final AtomicReference<FTPClient> hedgeClient = new AtomicReference<>();
+            final HedgedUpload hedging = new HedgedUpload(log, 1000 * 1000, 1, () -> {
+                connecting.countDown();
+                // e.g. waiting for a connect timeout
+                connectable.await();
+                hedgeClient.set(connect(server.getPort()));
+                return new HedgedUpload.Connection(hedgeClient.get(), true, released::countDown);
+            }, SPOOL);
+
+            final FTPClient primary = connect(proxy.getPort());
+            assertSame(primary, hedging.upload(primary, file, "/out.csv", new NullListener()));
+            assertTrue(connecting.await(0, TimeUnit.SECONDS));
+            assertEquals(Optional.of(file.length()), server.getFileSize("/out.csv"));
+
+            // the hedge connected after it was cancelled gives its slots back without uploading
+            connectable.countDown();
+            assertTrue(released.await(10, TimeUnit.SECONDS));
+            assertFalse(hedgeClient.get().isConnected());
+            assertFalse(server.getFileSize("/out.csv.hedge").isPresent());
+            FtpFileOutputPlugin.disconnectClient(primary);
+        }
+    }
+
+    @Test
+    public void testSkipsHedgeWithoutFreeSlot() throws Exception
+    {
+        final File file = newFile(100 * 1024);
+        final AtomicInteger attempts = new AtomicInteger();
+        try (EmbeddedFtpServer server = new EmbeddedFtpServer();
+                WanEmulationProxy proxy = new WanEmulationProxy("127.0.0.1", server.getPort(),
+                        new WanEmulationProxy.Profile().stallData(64 * 1024, 4000))) {
+            final HedgedUpload hedging = new HedgedUpload(log, 1000 * 1000, 1, () -> {
+                attempts.incrementAndGet();
+                return null;
+            }, SPOOL);
+
+            final FTPClient primary = connect(proxy.getPort());
+            assertSame(primary, hedging.upload(primary, file, "/out.csv", new NullListener()));
+            assertEquals(1, attempts.get());
+            assertEquals(Optional.of(file.length()), server.getFileSize("/out.csv"));
+            FtpFileOutputPlugin.disconnectClient(primary);
+        }
+    }
+
+    private static FTPClient connect(int port) throws Exception
+    {
+        final FTPClient client = new FTPClient();
+        client.connect("127.0.0.1", port);
+        client.login("test", "test");
+        return client;
+    }
+
+    private static class NullListener implements FTPDataTransferListener
+    {
+        public void started()
+        {
+        }
+
+        public void transferred(int length)
+        {
+        }
+
+        public void completed()
+        {
+        }
+
+        public void aborted()
+        {
+        }
+
+        public void failed()
+        {
+        }
+    }
+
+    private static File newFile(int size) throws Exception
+    {
+        final File file = Files.createTempFile("hedge", ".csv").toFile();
+        file.deleteOnExit();
+        Files.write(file.toPath(), new byte[size]);
+        return file;
+    }
+}
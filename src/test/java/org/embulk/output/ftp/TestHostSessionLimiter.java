@@ -0,0 +1,157 @@
+package org.embulk.output.ftp;
+
+import it.sauronsoftware.ftp4j.FTPDataTransferListener;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestHostSessionLimiter
+{
+    @Test
+    public void testLimitsSessions() throws Exception
+    {
+        final Path dir = Files.createTempDirectory("sessions");
+        final HostSessionLimiter limiter = new HostSessionLimiter(dir, "ftp.example.com", 21, 2, Optional.empty());
+        final HostSessionLimiter.Session first = limiter.acquire();
+        final HostSessionLimiter.Session second = limiter.acquire();
+        assertEquals(2, limiter.countActiveSessions());
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final AtomicReference<HostSessionLimiter.Session> third = new AtomicReference<>();
+        final Thread waiter = new Thread(() -> {
+            try {
+                third.set(limiter.acquire());
+                acquired.countDown();
+            }
+            catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        waiter.start();
+        assertFalse(acquired.await(500, TimeUnit.MILLISECONDS));
+
+        first.close();
+        assertTrue(acquired.await(10, TimeUnit.SECONDS));
+        assertEquals(2, limiter.countActiveSessions());
+
+        second.close();
+        third.get().close();
+        assertEquals(0, limiter.countActiveSessions());
+    }
+
+    @Test
+    public void testHandsOverIdleSlotToWaiter() throws Exception
+    {
+        final Path dir = Files.createTempDirectory("sessions");
+        // e.g. two Embulk processes sharing session_lock_dir
+        final HostSessionLimiter holder = new HostSessionLimiter(dir, "ftp.example.com", 21, 1, Optional.empty());
+        final HostSessionLimiter other = new HostSessionLimiter(dir, "ftp.example.com", 21, 1, Optional.empty());
+        final HostSessionLimiter.Session idle = holder.acquire();
+        assertFalse(holder.hasWaiters());
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final AtomicReference<HostSessionLimiter.Session> handedOver = new AtomicReference<>();
+        final Thread waiter = new Thread(() -> {
+            try {
+                handedOver.set(other.acquire());
+                acquired.countDown();
+            }
+            catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        waiter.start();
+        final long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (!holder.hasWaiters() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(holder.hasWaiters());
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+        // the holder gives up its idle connection between files
+        idle.close();
+        assertTrue(acquired.await(10, TimeUnit.SECONDS));
+        assertFalse(holder.hasWaiters());
+        assertEquals(1, holder.countActiveSessions());
+        handedOver.get().close();
+    }
+
+    @Test
+    public void testTryAcquireDoesNotWait() throws Exception
+    {
+        final Path dir = Files.createTempDirectory("sessions");
+        final HostSessionLimiter limiter = new HostSessionLimiter(dir, "ftp.example.com", 21, 1, Optional.empty());
+        final Optional<HostSessionLimiter.Session> first = limiter.tryAcquire();
+        assertTrue(first.isPresent());
+        assertFalse(limiter.tryAcquire().isPresent());
+        first.get().close();
+        assertTrue(limiter.tryAcquire().isPresent());
+    }
+
+    @Test
+    public void testCountsOnlyTransfersInFlight() throws Exception
+    {
+        final Path dir = Files.createTempDirectory("sessions");
+        final HostSessionLimiter limiter = new HostSessionLimiter(dir, "ftp.example.com", 21, 2, Optional.of(1000L));
+        final HostSessionLimiter.Session idle = limiter.acquire();
+        final HostSessionLimiter.Session busy = limiter.acquire();
+        final FTPDataTransferListener listener = busy.throttle(new NullListener());
+        assertEquals(0, limiter.countActiveTransfers());
+
+        listener.started();
+        assertEquals(2, limiter.countActiveSessions());
+        assertEquals(1, limiter.countActiveTransfers());
+        listener.completed();
+        assertEquals(0, limiter.countActiveTransfers());
+
+        listener.started();
+        busy.close();
+        assertEquals(0, limiter.countActiveTransfers());
+        idle.close();
+    }
+
+    @Test
+    public void testSeparatesServers() throws Exception
+    {
+        final Path dir = Files.createTempDirectory("sessions");
+        final HostSessionLimiter a = new HostSessionLimiter(dir, "a.example.com", 21, 1, Optional.empty());
+        final HostSessionLimiter b = new HostSessionLimiter(dir, "b.example.com", 21, 1, Optional.empty());
+        final HostSessionLimiter.Session session = a.acquire();
+        b.acquire().close();
+        assertEquals(1, a.countActiveSessions());
+        assertEquals(0, b.countActiveSessions());
+        session.close();
+    }
+
+    private static class NullListener implements FTPDataTransferListener
+    {
+        public void started()
+        {
+        }
+
+        public void transferred(int length)
+        {
+        }
+
+        public void completed()
+        {
+        }
+
+        public void aborted()
+        {
+        }
+
+        public void failed()
+        {
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.embulk.output.ftp;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+public class TestKeepAliveScheduler
+{
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testIdleOutsideTransfers()
+    {
+        final KeepAliveScheduler scheduler = new KeepAliveScheduler(30 * SECOND);
+        final KeepAliveScheduler.Connection connection = scheduler.register(new FTPClient());
+
+        connection.sent("CWD /out", 0);
+        assertFalse(connection.isIdle(29 * SECOND, 30 * SECOND));
+        assertTrue(connection.isIdle(30 * SECOND, 30 * SECOND));
+
+        connection.sent("STOR /out/file_000.00.csv", 40 * SECOND);
+        connection.received("150 Opening BINARY mode data connection");
+        assertFalse(connection.isIdle(100 * SECOND, 30 * SECOND));
+        connection.received("226 Transfer complete");
+        assertTrue(connection.isIdle(100 * SECOND, 30 * SECOND));
+    }
+
+    @Test
+    public void testAdaptsToIdleTimeout()
+    {
+        final KeepAliveScheduler scheduler = new KeepAliveScheduler(30 * SECOND);
+        final KeepAliveScheduler.Connection connection = scheduler.register(new FTPClient());
+
+        connection.sent("NOOP", 0);
+        connection.received("200 NOOP ok");
+        connection.sent("CWD /out", 20 * SECOND);
+        connection.received("421 Timeout.");
+        assertEquals(10 * SECOND, scheduler.getIntervalNanos());
+
+        // a 421 right after another command isn't an idle timeout
+        connection.sent("NOOP", 21 * SECOND);
+        connection.received("421 Service not available");
+        assertEquals(10 * SECOND, scheduler.getIntervalNanos());
+    }
+
+    @Test
+    public void testForgetsDisconnectedClients()
+    {
+        final KeepAliveScheduler scheduler = new KeepAliveScheduler(30 * SECOND);
+        scheduler.register(new FTPClient());
+        assertEquals(1, scheduler.countConnections());
+        scheduler.tick(System.nanoTime());
+        assertEquals(0, scheduler.countConnections());
+    }
+}
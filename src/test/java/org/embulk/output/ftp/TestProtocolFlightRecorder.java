@@ -0,0 +1,52 @@
+package org.embulk.output.ftp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class TestProtocolFlightRecorder
+{
+    @Test
+    public void testKeepsLinesInOrder()
+    {
+        final ProtocolFlightRecorder recorder = new ProtocolFlightRecorder(4);
+        assertEquals(Collections.emptyList(), recorder.getLines());
+
+        recorder.sent("USER embulk");
+        recorder.received("331 Please specify the password.");
+
+        assertEquals(Arrays.asList("> USER embulk", "< 331 Please specify the password."), recorder.getLines());
+    }
+
+    @Test
+    public void testWrapsAround()
+    {
+        final ProtocolFlightRecorder recorder = new ProtocolFlightRecorder(3);
+        for (int i = 0; i < 7; i++) {
+            recorder.sent("NOOP " + i);
+        }
+
+        assertEquals(Arrays.asList("> NOOP 4", "> NOOP 5", "> NOOP 6"), recorder.getLines());
+
+        recorder.received("200 NOOP ok.");
+
+        assertEquals(Arrays.asList("> NOOP 5", "> NOOP 6", "< 200 NOOP ok."), recorder.getLines());
+    }
+
+    @Test
+    public void testMasksPassword()
+    {
+        final ProtocolFlightRecorder recorder = new ProtocolFlightRecorder(2);
+        recorder.sent("PASS secret");
+        recorder.sent("pass secret");
+
+        assertEquals(Arrays.asList("> PASS ********", "> PASS ********"), recorder.getLines());
+        for (String line : recorder.getLines()) {
+            assertFalse(line.contains("secret"));
+        }
+    }
+}
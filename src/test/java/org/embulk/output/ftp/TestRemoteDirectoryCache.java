@@ -0,0 +1,26 @@
+package org.embulk.output.ftp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestRemoteDirectoryCache
+{
+    @Test
+    public void testInvalidateForgetsParents()
+    {
+        final RemoteDirectoryCache cache = RemoteDirectoryCache.of("localhost", 21, "test-invalidate");
+        cache.add("/");
+        cache.add("/out");
+        cache.add("/out/3f");
+        cache.add("/other");
+
+        cache.invalidate("/out/3f", "/");
+
+        assertFalse(cache.contains("/out/3f"));
+        assertFalse(cache.contains("/out"));
+        assertFalse(cache.contains("/"));
+        assertTrue(cache.contains("/other"));
+    }
+}
@@ -0,0 +1,103 @@
+package org.embulk.output.ftp;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+public class TestServerProfile
+{
+    private static final Logger log = LoggerFactory.getLogger(TestServerProfile.class);
+
+    @Test
+    public void testParseFeatures()
+    {
+        final List<String> features = ServerProfile.parseFeatures(new String[] {
+            "Features:", " EPSV", " MDTM", " MLST size*;type*;modify*;", " REST STREAM", " SIZE", " UTF8", "", "End"});
+        assertEquals(Arrays.asList("EPSV", "MDTM", "MLST size*;type*;modify*;", "REST STREAM", "SIZE", "UTF8"), features);
+        assertEquals(0, ServerProfile.parseFeatures(new String[] {"No features"}).size());
+        assertEquals(0, ServerProfile.parseFeatures(new String[] {"Features:", "End"}).size());
+        assertEquals(Arrays.asList("MODE Z", "AVBL"), ServerProfile.parseFeatures(new String[] {"Features:", "  MODE Z  ", "\tAVBL", "End"}));
+    }
+
+    @Test
+    public void testSupports()
+    {
+        final ServerProfile profile = new ServerProfile(Arrays.asList("MLST size*;modify*;", "REST STREAM", "mode z", "SIZE"),
+                1_000_000L, Optional.of("/out"), Optional.empty());
+        assertTrue(profile.supports("MLST"));
+        assertTrue(profile.supports("REST STREAM"));
+        assertTrue(profile.supports("MODE Z"));
+        assertTrue(profile.supports("SIZE"));
+        // "REST STREAM" is REST with a parameter
+        assertTrue(profile.supports("REST"));
+        assertFalse(profile.supports("REST STREAMS"));
+        assertFalse(profile.supports("EPSV"));
+        assertFalse(profile.supports("AVBL"));
+        assertFalse(profile.supports("SIZ"));
+        assertTrue(profile.supports("mlst"));
+    }
+
+    @Test
+    public void testProbeWithoutWriteCheck() throws Exception
+    {
+        try (EmbeddedFtpServer server = new EmbeddedFtpServer(true)) {
+            final FTPClient client = connect(server.getPort());
+            final ServerProfile profile = ServerProfile.probe(log, client, "/out", "/", false, new RemoteDirectoryCache());
+            assertTrue(profile.supports("MODE Z"));
+            assertTrue(profile.supports("REST STREAM"));
+            assertEquals(Optional.of("/out"), profile.getDirectory());
+            assertEquals(Optional.empty(), profile.getAvailableBytes());
+            assertEquals(0L, server.getUploadedBytes());
+            FtpFileOutputPlugin.disconnectClient(client);
+        }
+    }
+
+    @Test
+    public void testProbeWithWriteCheckSendsModeS() throws Exception
+    {
+        try (EmbeddedFtpServer server = new EmbeddedFtpServer(true)) {
+            final FTPClient client = connect(server.getPort());
+            // e.g. left in MODE Z by ftp4j or behind its back
+            client.setCompressionEnabled(true);
+            client.sendCustomCommand("MODE Z");
+            ServerProfile.probe(log, client, "/out", "/", true, new RemoteDirectoryCache());
+            // the server rejects raw bytes in MODE Z, so it was uploaded in MODE S and deleted
+            assertEquals(6L, server.getUploadedBytes());
+            assertEquals(0, server.getFileCount());
+            FtpFileOutputPlugin.disconnectClient(client);
+        }
+    }
+
+    @Test
+    public void testProbeCreatesMissingParents() throws Exception
+    {
+        try (EmbeddedFtpServer server = new EmbeddedFtpServer()) {
+            final FTPClient client = connect(server.getPort());
+            final RemoteDirectoryCache directories = new RemoteDirectoryCache();
+            ServerProfile.probe(log, client, "/out/2024/01", "/", true, directories);
+            assertTrue(server.hasDirectory("/out"));
+            assertTrue(server.hasDirectory("/out/2024"));
+            assertTrue(server.hasDirectory("/out/2024/01"));
+            assertTrue(directories.contains("/out/2024"));
+            assertEquals(0, server.getFileCount());
+            FtpFileOutputPlugin.disconnectClient(client);
+        }
+    }
+
+    private static FTPClient connect(int port) throws Exception
+    {
+        final FTPClient client = new FTPClient();
+        client.connect("127.0.0.1", port);
+        client.login("test", "test");
+        return client;
+    }
+}
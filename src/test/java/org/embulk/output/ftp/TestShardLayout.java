@@ -0,0 +1,47 @@
+package org.embulk.output.ftp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class TestShardLayout
+{
+    @Test
+    public void testNone()
+    {
+        final ShardLayout shards = new ShardLayout("none", 256, null, "/");
+        assertEquals("/out/file_", shards.apply("/out/file_", 1, 2));
+    }
+
+    @Test
+    public void testHash()
+    {
+        final ShardLayout shards = new ShardLayout("hash", 256, null, "/");
+        final String shard = shards.shardOf(1, 2);
+        assertEquals(2, shard.length());
+        assertEquals("/out/" + shard + "/file_", shards.apply("/out/file_", 1, 2));
+        assertEquals("/out/" + shard + "/", shards.apply("/out/", 1, 2));
+        assertEquals(shard + "/file_", shards.apply("file_", 1, 2));
+
+        // consecutive files are spread over shards
+        final Set<String> used = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            used.add(shards.shardOf(0, i));
+        }
+        assertTrue(used.size() > 200);
+        assertEquals(3, new ShardLayout("hash", 4096, null, "/").shardOf(0, 0).length());
+        assertEquals("0", new ShardLayout("hash", 1, null, "/").shardOf(5, 7));
+    }
+
+    @Test
+    public void testTime()
+    {
+        final ShardLayout shards = new ShardLayout("time", 256, "2024010112", "/");
+        assertEquals("/out/2024010112/file_", shards.apply("/out/file_", 1, 2));
+        assertEquals("/out/2024010112/file_", shards.apply("/out/file_", 3, 4));
+    }
+}
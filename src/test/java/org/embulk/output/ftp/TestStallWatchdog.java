@@ -0,0 +1,49 @@
+package org.embulk.output.ftp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestStallWatchdog
+{
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void testNotStalledDuringFirstWindow()
+    {
+        final StallWatchdog watchdog = new StallWatchdog(1000, 10, 0);
+        assertFalse(watchdog.isStalled(9 * SECOND));
+        assertTrue(watchdog.isStalled(10 * SECOND));
+    }
+
+    @Test
+    public void testStalledWhenTricklingBelowMinimum()
+    {
+        final StallWatchdog watchdog = new StallWatchdog(1000, 10, 0);
+        for (int s = 0; s < 30; s++) {
+            // 500 bytes/s keeps resetting a read timeout but is too slow
+            watchdog.transferred(500, s * SECOND);
+        }
+        assertTrue(watchdog.isStalled(30 * SECOND));
+    }
+
+    @Test
+    public void testNotStalledAboveMinimum()
+    {
+        final StallWatchdog watchdog = new StallWatchdog(1000, 10, 0);
+        for (int s = 0; s < 30; s++) {
+            watchdog.transferred(2000, s * SECOND);
+        }
+        assertFalse(watchdog.isStalled(30 * SECOND));
+    }
+
+    @Test
+    public void testOldTransfersLeaveTheWindow()
+    {
+        final StallWatchdog watchdog = new StallWatchdog(1000, 10, 0);
+        watchdog.transferred(1_000_000, 0);
+        assertFalse(watchdog.isStalled(10 * SECOND - 1));
+        assertTrue(watchdog.isStalled(20 * SECOND));
+    }
+}
@@ -0,0 +1,95 @@
+package org.embulk.output.ftp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class TestTransferMetrics
+{
+    @Test
+    public void testCountsTransfers()
+    {
+        final TransferMetrics metrics = new TransferMetrics("localhost:21");
+        final TransferMetrics.TaskRollup task0 = new TransferMetrics.TaskRollup(0);
+        final TransferMetrics.TaskRollup task1 = new TransferMetrics.TaskRollup(1);
+        metrics.enqueue(100);
+        metrics.enqueue(200);
+        final TransferMetrics.Progress first = metrics.newProgress(task0, "/out/000.00.csv", 100);
+        final TransferMetrics.Progress second = metrics.newProgress(task1, "/out/001.00.csv", 200);
+        first.started();
+        second.started();
+        first.transferred(60);
+        second.transferred(50);
+
+        assertEquals(2, metrics.getActiveTransfers());
+        assertEquals(110, metrics.getBytesTransferred());
+        assertEquals(190, metrics.getRemainingBytes());
+
+        first.transferred(40);
+        first.completed();
+        metrics.dequeue(100);
+        second.failed();
+
+        assertEquals(0, metrics.getActiveTransfers());
+        assertEquals(1, metrics.getFilesCompleted());
+        assertEquals(1, metrics.getFilesFailed());
+        assertEquals(1, Arrays.stream(metrics.getTransferMillisHistogram()).sum());
+        // the failed file is retried
+        assertEquals(200, metrics.getRemainingBytes());
+        assertEquals(1, metrics.getQueuedFiles());
+    }
+
+    @Test
+    public void testRemainingBytesIncludeQueuedFiles()
+    {
+        final TransferMetrics metrics = new TransferMetrics("localhost:21");
+        final TransferMetrics.TaskRollup task = new TransferMetrics.TaskRollup(0);
+        metrics.enqueue(100);
+        metrics.enqueue(300);
+        final TransferMetrics.Progress progress = metrics.newProgress(task, "/out/000.00.csv", 100);
+        progress.started();
+        progress.transferred(30);
+
+        assertEquals(2, metrics.getQueuedFiles());
+        assertEquals(370, metrics.getRemainingBytes());
+    }
+
+    @Test
+    public void testRollsUpPerTask()
+    {
+        final TransferMetrics first = new TransferMetrics("ftp1:21");
+        final TransferMetrics second = new TransferMetrics("ftp2:21");
+        final TransferMetrics.TaskRollup task = new TransferMetrics.TaskRollup(3);
+        for (TransferMetrics metrics : Arrays.asList(first, second)) {
+            final TransferMetrics.Progress progress = metrics.newProgress(task, "/out/003.00.csv", 10);
+            progress.started();
+            progress.transferred(10);
+            progress.completed();
+        }
+        final TransferMetrics.Progress failed = first.newProgress(task, "/out/003.01.csv", 10);
+        failed.started();
+        failed.transferred(4);
+        failed.failed();
+
+        assertEquals(24, task.getBytesTransferred());
+        assertEquals(2, task.getFilesCompleted());
+        assertEquals(1, task.getFilesFailed());
+        final Map<String, Object> report = task.toReport();
+        assertEquals(24L, report.get("bytes_transferred"));
+        assertEquals(TransferMetrics.HISTOGRAM_BUCKETS, ((List<?>) report.get("transfer_millis_histogram")).size());
+    }
+
+    @Test
+    public void testMillisecondBuckets()
+    {
+        assertEquals(0, TransferMetrics.bucketOf(0));
+        assertEquals(1, TransferMetrics.bucketOf(1));
+        assertEquals(4, TransferMetrics.bucketOf(10));
+        assertEquals(10, TransferMetrics.bucketOf(1000));
+        assertEquals(TransferMetrics.HISTOGRAM_BUCKETS - 1, TransferMetrics.bucketOf(Long.MAX_VALUE));
+    }
+}
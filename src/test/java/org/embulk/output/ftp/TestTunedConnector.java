@@ -0,0 +1,18 @@
+package org.embulk.output.ftp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestTunedConnector
+{
+    @Test
+    public void testBandwidthDelayProduct()
+    {
+        // 1 Gbit/s * 80 ms = 10 MB
+        assertEquals(10_000_000, TunedConnector.bandwidthDelayProduct(125_000_000L, 80_000_000L));
+        // LAN RTT falls back to the minimum
+        assertEquals(TunedConnector.MIN_BUFFER_SIZE, TunedConnector.bandwidthDelayProduct(125_000_000L, 100_000L));
+        assertEquals(TunedConnector.MAX_BUFFER_SIZE, TunedConnector.bandwidthDelayProduct(10_000_000_000L, 1_000_000_000L));
+    }
+}
@@ -0,0 +1,66 @@
+package org.embulk.output.ftp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestUploadScheduler
+{
+    @Test
+    public void testOverloadLowersLimitAndSuccessRaisesIt() throws Exception
+    {
+        final UploadScheduler scheduler = new UploadScheduler("localhost:21", 4);
+        scheduler.acquire();
+        scheduler.acquire();
+        scheduler.acquire();
+        scheduler.onOverload();
+        assertEquals(2, scheduler.getLimit());
+
+        scheduler.release();
+        scheduler.recordSuccess();
+        scheduler.recordSuccess();
+        assertEquals(3, scheduler.getLimit());
+    }
+
+    @Test
+    public void testTryAcquireDoesNotWait() throws Exception
+    {
+        final UploadScheduler scheduler = new UploadScheduler("localhost:21", 1);
+        assertTrue(scheduler.tryAcquire());
+        assertFalse(scheduler.tryAcquire());
+        scheduler.release();
+        assertTrue(scheduler.tryAcquire());
+    }
+
+    @Test
+    public void testWaitsForFreeSlot() throws Exception
+    {
+        final UploadScheduler scheduler = new UploadScheduler("localhost:21", 1);
+        scheduler.acquire();
+
+        final CountDownLatch admitted = new CountDownLatch(1);
+        final Thread waiter = new Thread(() -> {
+            try {
+                scheduler.acquire();
+                admitted.countDown();
+                scheduler.release();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+
+        assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(scheduler.hasWaiters());
+        scheduler.release();
+        assertTrue(admitted.await(5, TimeUnit.SECONDS));
+        waiter.join();
+        assertFalse(scheduler.hasWaiters());
+    }
+}
@@ -0,0 +1,200 @@
+package org.embulk.output.ftp;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.TransactionalFileOutput;
+import org.embulk.util.config.ConfigMapperFactory;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * End-to-end upload scenarios over an emulated WAN link, run against the docker-compose FTP server.
+ *
+ * They are skipped unless FTP_BENCHMARK=true because each takes from several seconds to a few minutes.
+ * Every scenario logs the job completion time, files/s and the number of bytes sent again after a failure.
+ */
+public class WanEmulationBenchmark
+{
+    private static final Logger log = LoggerFactory.getLogger(WanEmulationBenchmark.class);
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = FtpFileOutputPlugin.CONFIG_MAPPER_FACTORY;
+
+    private static String FTP_TEST_HOST;
+    private static Integer FTP_TEST_PORT;
+    private static String FTP_TEST_USER;
+    private static String FTP_TEST_PASSWORD;
+    private static String FTP_TEST_DIRECTORY;
+    private static boolean FTP_BENCHMARK;
+
+    @BeforeClass
+    public static void initializeConstant()
+    {
+        final Map<String, String> env = System.getenv();
+        FTP_TEST_HOST = env.getOrDefault("FTP_TEST_HOST", "localhost");
+        FTP_TEST_PORT = Integer.valueOf(env.getOrDefault("FTP_TEST_PORT", "11021"));
+        FTP_TEST_USER = env.getOrDefault("FTP_TEST_USER", "scott");
+        FTP_TEST_PASSWORD = env.getOrDefault("FTP_TEST_PASSWORD", "tiger");
+        FTP_TEST_DIRECTORY = env.getOrDefault("FTP_TEST_DIRECTORY", "/unittest/");
+        FTP_BENCHMARK = Boolean.parseBoolean(env.getOrDefault("FTP_BENCHMARK", "false"));
+    }
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+    private FtpFileOutputPlugin plugin;
+
+    @Before
+    public void createResources()
+    {
+        assumeTrue("set FTP_BENCHMARK=true to run WAN emulation benchmarks", FTP_BENCHMARK);
+        plugin = new FtpFileOutputPlugin();
+    }
+
+    @Test
+    public void manySmallFilesOnHighLatencyLink() throws Exception
+    {
+        final WanEmulationProxy.Profile profile = new WanEmulationProxy.Profile()
+                .latency(40);
+        // a task per file, so that every file pays for connecting and logging in
+        final Result baseline = run("many_small_files_baseline", profile, 200, 1, 4 * 1024, config -> { });
+        // one connection per task
+        final Result tuned = run("many_small_files", profile, 2, 100, 4 * 1024, config -> { });
+        log.info("many_small_files: baseline {} files/s, tuned {} files/s ({}x)",
+                String.format("%.1f", baseline.filesPerSecond), String.format("%.1f", tuned.filesPerSecond),
+                String.format("%.1f", tuned.filesPerSecond / baseline.filesPerSecond));
+    }
+
+    @Test
+    public void largeFileOnBandwidthCappedLink() throws Exception
+    {
+        final WanEmulationProxy.Profile profile = new WanEmulationProxy.Profile()
+                .latency(40)
+                .bandwidthMbps(100);
+        run("large_file", profile, 1, 1, 64 * 1024 * 1024, config -> config.set("socket_send_buffer_size", "auto"));
+    }
+
+    @Test
+    public void stalledDataConnection() throws Exception
+    {
+        final WanEmulationProxy.Profile profile = new WanEmulationProxy.Profile()
+                .latency(40)
+                .stallData(4 * 1024 * 1024, 2000);
+        run("stalled", profile, 1, 2, 16 * 1024 * 1024, config -> { });
+    }
+
+    @Test
+    public void dataConnectionResetMidTransfer() throws Exception
+    {
+        final WanEmulationProxy.Profile profile = new WanEmulationProxy.Profile()
+                .latency(40)
+                .resetData(8 * 1024 * 1024, 1);
+        final Result result = run("reset", profile, 1, 1, 32 * 1024 * 1024, config -> config.set("max_transfer_retry", 3));
+        assertEquals(1, result.resets);
+        assertTrue(result.resentBytes > 0);
+    }
+
+    @Test
+    public void stalledControlConnection() throws Exception
+    {
+        final WanEmulationProxy.Profile profile = new WanEmulationProxy.Profile()
+                .latency(40)
+                .stallControl(256, 2000);
+        run("control_stalled", profile, 1, 20, 4 * 1024, config -> { });
+    }
+
+    @Test
+    public void controlConnectionResetBetweenFiles() throws Exception
+    {
+        // only the connection of the task, not the one of transaction(), sends more than 1 KB of commands
+        final WanEmulationProxy.Profile profile = new WanEmulationProxy.Profile()
+                .latency(40)
+                .resetControl(1024, 1);
+        final Result result = run("control_reset", profile, 1, 40, 4 * 1024, config -> config.set("max_transfer_retry", 3));
+        assertEquals(1, result.resets);
+    }
+
+    private interface ConfigCustomizer
+    {
+        void customize(ConfigSource config);
+    }
+
+    private static class Result
+    {
+        final long elapsedMillis;
+        final double filesPerSecond;
+        final long resentBytes;
+        final int resets;
+
+        Result(long elapsedMillis, int files, long resentBytes, int resets)
+        {
+            this.elapsedMillis = elapsedMillis;
+            this.filesPerSecond = files * 1000.0 / Math.max(1, elapsedMillis);
+            this.resentBytes = resentBytes;
+            this.resets = resets;
+        }
+    }
+
+    private Result run(String scenario, WanEmulationProxy.Profile profile, int taskCount, int filesPerTask,
+            int fileSize, ConfigCustomizer customizer) throws Exception
+    {
+        final byte[] payload = new byte[fileSize];
+        new Random(0).nextBytes(payload);
+        final List<byte[]> chunks = new ArrayList<>();
+        for (int off = 0; off < payload.length; off += 1024 * 1024) {
+            chunks.add(Arrays.copyOfRange(payload, off, Math.min(off + 1024 * 1024, payload.length)));
+        }
+
+        try (WanEmulationProxy proxy = new WanEmulationProxy(FTP_TEST_HOST, FTP_TEST_PORT, profile)) {
+            final ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                    .set("host", "127.0.0.1")
+                    .set("port", proxy.getPort())
+                    .set("user", FTP_TEST_USER)
+                    .set("password", FTP_TEST_PASSWORD)
+                    .set("path_prefix", FTP_TEST_DIRECTORY + "bench_" + scenario + "_")
+                    .set("file_ext", ".bin");
+            customizer.customize(config);
+
+            final long start = System.nanoTime();
+            plugin.transaction(config, taskCount, taskSource -> {
+                final List<TaskReport> reports = new ArrayList<>();
+                // tasks run one after another, like a local executor with one thread, so that they share the link
+                for (int taskIndex = 0; taskIndex < taskCount; taskIndex++) {
+                    final TransactionalFileOutput output = plugin.open(taskSource, taskIndex);
+                    for (int i = 0; i < filesPerTask; i++) {
+                        output.nextFile();
+                        for (byte[] chunk : chunks) {
+                            output.add(Buffer.wrap(chunk));
+                        }
+                    }
+                    output.finish();
+                    reports.add(output.commit());
+                }
+                return reports;
+            });
+            final long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+            final long expectedBytes = (long) taskCount * filesPerTask * fileSize;
+            final int files = taskCount * filesPerTask;
+            final Result result = new Result(elapsedMillis, files, proxy.getUploadedDataBytes() - expectedBytes, proxy.getResets());
+            log.info("scenario={} files={} bytes={} elapsed_ms={} files_per_s={} resent_bytes={} resets={}",
+                    scenario, files, expectedBytes, result.elapsedMillis, String.format("%.1f", result.filesPerSecond),
+                    result.resentBytes, result.resets);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package org.embulk.output.ftp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * TCP proxy between the plugin and an FTP server that emulates a bad WAN link.
+ *
+ * It adds one-way latency and a bandwidth cap to control and data connections, and periodic stalls and
+ * connection resets to either of them. PASV replies are rewritten so that data connections go through the proxy as well.
+ */
+class WanEmulationProxy implements AutoCloseable
+{
+    private static final Logger log = LoggerFactory.getLogger(WanEmulationProxy.class);
+    private static final Pattern PASV_REPLY = Pattern.compile("^227 .*\\((\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)\\)");
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    static class Profile
+    {
+        private long latencyMillis = 0;
+        private long bytesPerSecond = 0;
+        private long stallDataEveryBytes = 0;
+        private long stallDataMillis = 0;
+        private long stallControlEveryBytes = 0;
+        private long stallControlMillis = 0;
+        private long resetDataAfterBytes = 0;
+        private int resetDataCount = 0;
+        private long resetControlAfterBytes = 0;
+        private int resetControlCount = 0;
+
+        Profile latency(long millis)
+        {
+            this.latencyMillis = millis;
+            return this;
+        }
+
+        Profile bandwidthMbps(long mbps)
+        {
+            this.bytesPerSecond = mbps * 1000 * 1000 / 8;
+            return this;
+        }
+
+        /**
+         * Stops forwarding on a data connection for {@code millis} after every {@code everyBytes} bytes.
+         */
+        Profile stallData(long everyBytes, long millis)
+        {
+            this.stallDataEveryBytes = everyBytes;
+            this.stallDataMillis = millis;
+            return this;
+        }
+
+        /**
+         * Stops forwarding commands or replies on a control connection for {@code millis} after every
+         * {@code everyBytes} bytes sent in that direction.
+         */
+        Profile stallControl(long everyBytes, long millis)
+        {
+            this.stallControlEveryBytes = everyBytes;
+            this.stallControlMillis = millis;
+            return this;
+        }
+
+        /**
+         * Resets a data connection abruptly after it forwarded {@code afterBytes} bytes, {@code count} times.
+         */
+        Profile resetData(long afterBytes, int count)
+        {
+            this.resetDataAfterBytes = afterBytes;
+            this.resetDataCount = count;
+            return this;
+        }
+
+        /**
+         * Resets a control connection abruptly after it forwarded {@code afterBytes} bytes of commands, {@code count} times.
+         */
+        Profile resetControl(long afterBytes, int count)
+        {
+            this.resetControlAfterBytes = afterBytes;
+            this.resetControlCount = count;
+            return this;
+        }
+    }
+
+    private final String targetHost;
+    private final int targetPort;
+    private final Profile profile;
+    private final ServerSocket server;
+    private final AtomicLong uploadedDataBytes = new AtomicLong();
+    private final AtomicInteger remainingDataResets;
+    private final AtomicInteger remainingControlResets;
+    private final AtomicInteger resets = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    WanEmulationProxy(String targetHost, int targetPort, Profile profile) throws IOException
+    {
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.profile = profile;
+        this.remainingDataResets = new AtomicInteger(profile.resetDataCount);
+        this.remainingControlResets = new AtomicInteger(profile.resetControlCount);
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        startDaemon("wan-proxy-accept", this::acceptControlConnections);
+    }
+
+    int getPort()
+    {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Bytes sent from the plugin to the server over data connections, including re-sent ones.
+     */
+    long getUploadedDataBytes()
+    {
+        return uploadedDataBytes.get();
+    }
+
+    int getResets()
+    {
+        return resets.get();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        server.close();
+    }
+
+    private void acceptControlConnections()
+    {
+        while (!closed) {
+            try {
+                final Socket client = server.accept();
+                final Socket upstream = new Socket(targetHost, targetPort);
+                pump(client, upstream, false, true);
+                pump(upstream, client, false, false);
+            }
+            catch (IOException ex) {
+                if (!closed) {
+                    log.warn("WAN emulation proxy failed to accept a connection", ex);
+                }
+            }
+        }
+    }
+
+    private String openDataProxy(int upstreamPort) throws IOException
+    {
+        final ServerSocket dataServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        dataServer.setSoTimeout(60 * 1000);
+        startDaemon("wan-proxy-data-accept", () -> {
+            try (ServerSocket s = dataServer) {
+                final Socket client = s.accept();
+                final Socket upstream = new Socket(targetHost, upstreamPort);
+                pump(client, upstream, true, true);
+                pump(upstream, client, true, false);
+            }
+            catch (IOException ex) {
+                if (!closed) {
+                    log.warn("WAN emulation proxy failed to accept a data connection", ex);
+                }
+            }
+        });
+        final int port = dataServer.getLocalPort();
+        return String.format("127,0,0,1,%d,%d", port >> 8, port & 0xff);
+    }
+
+    /**
+     * Copies bytes from {@code from} to {@code to} on two threads: the reader stamps each chunk with its arrival time,
+     * the writer delivers it after the latency and at the capped rate.
+     * Replies on the control connection are forwarded line by line so that PASV replies can be rewritten.
+     */
+    private void pump(Socket from, Socket to, boolean data, boolean upload)
+    {
+        final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+        final boolean rewritePasv = !data && !upload;
+        startDaemon("wan-proxy-read", () -> {
+            final ByteArrayOutputStream line = new ByteArrayOutputStream();
+            // not closed here: closing the stream closes the socket, which the other direction may still use.
+            // the writers close both sockets once they are done
+            try {
+                final InputStream in = from.getInputStream();
+                final byte[] buffer = new byte[CHUNK_SIZE];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    if (!rewritePasv) {
+                        queue.put(new Chunk(Arrays.copyOf(buffer, n)));
+                        continue;
+                    }
+                    for (int i = 0; i < n; i++) {
+                        line.write(buffer[i]);
+                        if (buffer[i] == '\n') {
+                            queue.put(new Chunk(rewriteReplyLine(line.toByteArray())));
+                            line.reset();
+                        }
+                    }
+                }
+            }
+            catch (IOException | InterruptedException ex) {
+                // connection closed
+            }
+            finally {
+                queue.add(Chunk.EOF);
+            }
+        });
+        final long stallEveryBytes = data ? profile.stallDataEveryBytes : profile.stallControlEveryBytes;
+        final long stallMillis = data ? profile.stallDataMillis : profile.stallControlMillis;
+        // control connections are reset only after commands so that the reset lands between replies
+        final long resetAfterBytes = data ? profile.resetDataAfterBytes : (upload ? profile.resetControlAfterBytes : 0);
+        final AtomicInteger remainingResets = data ? remainingDataResets : remainingControlResets;
+        startDaemon("wan-proxy-write", () -> {
+            long forwarded = 0;
+            long nextStall = stallEveryBytes;
+            final long startNanos = System.nanoTime();
+            try (OutputStream out = to.getOutputStream()) {
+                while (true) {
+                    final Chunk chunk = queue.take();
+                    if (chunk == Chunk.EOF) {
+                        break;
+                    }
+                    sleepUntil(chunk.arrivalNanos + profile.latencyMillis * 1_000_000L);
+                    out.write(chunk.bytes);
+                    out.flush();
+                    forwarded += chunk.bytes.length;
+                    if (data && upload) {
+                        uploadedDataBytes.addAndGet(chunk.bytes.length);
+                    }
+                    if (profile.bytesPerSecond > 0) {
+                        sleepUntil(startNanos + forwarded * 1_000_000_000L / profile.bytesPerSecond);
+                    }
+                    if (stallEveryBytes > 0 && forwarded >= nextStall) {
+                        Thread.sleep(stallMillis);
+                        nextStall += stallEveryBytes;
+                    }
+                    if (resetAfterBytes > 0 && forwarded >= resetAfterBytes && remainingResets.getAndDecrement() > 0) {
+                        resets.incrementAndGet();
+                        reset(from);
+                        reset(to);
+                        break;
+                    }
+                }
+            }
+            catch (IOException | InterruptedException ex) {
+                // connection closed
+            }
+            finally {
+                closeQuietly(from);
+                closeQuietly(to);
+            }
+        });
+    }
+
+    private byte[] rewriteReplyLine(byte[] line) throws IOException
+    {
+        final String text = new String(line, StandardCharsets.US_ASCII);
+        final Matcher m = PASV_REPLY.matcher(text);
+        if (!m.find()) {
+            return line;
+        }
+        final int upstreamPort = Integer.parseInt(m.group(5)) * 256 + Integer.parseInt(m.group(6));
+        final String rewritten = "227 Entering Passive Mode (" + openDataProxy(upstreamPort) + ").\r\n";
+        return rewritten.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException
+    {
+        final long waitNanos = nanoTime - System.nanoTime();
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        }
+    }
+
+    private static void reset(Socket socket)
+    {
+        try {
+            socket.setSoLinger(true, 0);
+        }
+        catch (SocketException ex) {
+            // already closed
+        }
+        closeQuietly(socket);
+    }
+
+    private static void closeQuietly(Socket socket)
+    {
+        try {
+            socket.close();
+        }
+        catch (IOException ex) {
+            // do nothing
+        }
+    }
+
+    private static void startDaemon(String name, Runnable runnable)
+    {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static class Chunk
+    {
+        static final Chunk EOF = new Chunk(new byte[0]);
+
+        final byte[] bytes;
+        final long arrivalNanos = System.nanoTime();
+
+        Chunk(byte[] bytes)
+        {
+            this.bytes = bytes;
+        }
+    }
+}